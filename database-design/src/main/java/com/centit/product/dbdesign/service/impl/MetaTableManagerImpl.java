@@ -17,6 +17,7 @@ import com.centit.product.metadata.dao.MetaTableDao;
 import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.po.MetaColumn;
 import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.service.MetaDataEventBus;
 import com.centit.product.metadata.service.impl.MetaDataServiceImpl;
 import com.centit.support.algorithm.DatetimeOpt;
 import com.centit.support.algorithm.GeneralAlgorithm;
@@ -81,6 +82,9 @@ public class MetaTableManagerImpl
     @Resource
     private PendingMetaColumnDao pendingMetaColumnDao;
 
+    @Autowired
+    private MetaDataEventBus metaDataEventBus;
+
     /*
          @PostConstruct
         public void init() {
@@ -406,6 +410,7 @@ public class MetaTableManagerImpl
                     }
                 }
             }
+            metaTable.invalidateAccessPlan();
             for (MetaColumn m : setMetaColumn) {
                 if (m.getIsCompare()!=null && m.getIsCompare()) {
                     metaColumnDao.updateObject(m);
@@ -420,11 +425,14 @@ public class MetaTableManagerImpl
                     metaColumnDao.saveNewObject(tmp);
                 }
             }
+            metaDataEventBus.publishTableChanged(metaTable.getTableId());
         } else{
-            metaTableDao.saveNewObject(ptable.mapToMetaTable());
+            MetaTable newTable = ptable.mapToMetaTable();
+            metaTableDao.saveNewObject(newTable);
             for(PendingMetaColumn p:ptable.getMdColumns()){
                 metaColumnDao.saveNewObject(p.mapToMetaColumn());
             }
+            metaDataEventBus.publishTableChanged(newTable.getTableId());
         }
 
     }
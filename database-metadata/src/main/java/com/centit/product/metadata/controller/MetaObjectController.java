@@ -8,6 +8,8 @@ import com.centit.framework.core.controller.BaseController;
 import com.centit.framework.core.controller.WrapUpResponseBody;
 import com.centit.framework.core.dao.PageQueryResult;
 import com.centit.product.metadata.service.MetaObjectService;
+import com.centit.product.metadata.vo.MetaPageDesc;
+import com.centit.product.metadata.vo.SeekPageResult;
 import com.centit.search.service.Impl.ESSearcher;
 import com.centit.support.algorithm.NumberBaseOpt;
 import com.centit.support.algorithm.StringBaseOpt;
@@ -24,6 +26,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,11 +52,11 @@ public class MetaObjectController extends BaseController {
     @Autowired(required = false)
     private ESSearcher esObjectSearcher;
 
-    @ApiOperation(value = "分页查询数据库表数据列表")
+    @ApiOperation(value = "分页查询数据库表数据列表，countPolicy 参数指定总行数的获取方式：EXACT、SKIP、CACHED、ESTIMATED")
     @RequestMapping(value = "/{tableId}/list", method = RequestMethod.GET)
     @WrapUpResponseBody
     @JdbcTransaction
-    public PageQueryResult<Object> listObjects(@PathVariable String tableId, PageDesc pageDesc,
+    public PageQueryResult<Object> listObjects(@PathVariable String tableId, MetaPageDesc pageDesc,
                                                String [] fields,HttpServletRequest request) {
         Map<String, Object> params = collectRequestParameters(request);//convertSearchColumn(request);
         JSONArray ja = metaObjectService.pageQueryObjects(
@@ -55,6 +64,55 @@ public class MetaObjectController extends BaseController {
         return PageQueryResult.createJSONArrayResult(ja, pageDesc, fields);
     }
 
+    @ApiOperation(value = "按游标分页查询数据库表数据，pageToken 为上一页返回的 nextPageToken")
+    @RequestMapping(value = "/{tableId}/seek", method = RequestMethod.GET)
+    @WrapUpResponseBody
+    @JdbcTransaction
+    public SeekPageResult seekObjects(@PathVariable String tableId, String pageToken, Integer pageSize,
+                                      String [] fields, HttpServletRequest request) {
+        Map<String, Object> params = collectRequestParameters(request);
+        params.remove("pageToken");
+        params.remove("pageSize");
+        params.remove("fields");
+        return metaObjectService.seekQueryObjects(tableId, params, fields, pageToken,
+            pageSize == null ? 0 : pageSize);
+    }
+
+    @ApiOperation(value = "导出数据库表数据，format 为 jsonl 时每行一个对象，否则输出一个json数组")
+    @RequestMapping(value = "/{tableId}/export", method = RequestMethod.GET)
+    @JdbcTransaction
+    public void exportObjects(@PathVariable String tableId, String [] fields, String format,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, Object> params = collectRequestParameters(request);
+        params.remove("format");
+        params.remove("fields");
+        boolean jsonLines = "jsonl".equalsIgnoreCase(format);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType(jsonLines ? "application/x-ndjson" : "application/json");
+        // 直接写到输出流，客户端读得慢时写操作会阻塞，下一批查询也随之推迟
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        if (!jsonLines) {
+            writer.write('[');
+        }
+        int[] rowCount = {0};
+        metaObjectService.exportObjects(tableId, params, fields, (row) -> {
+            if (jsonLines) {
+                JSON.writeJSONString(writer, row);
+                writer.write('\n');
+            } else {
+                if (rowCount[0] > 0) {
+                    writer.write(',');
+                }
+                JSON.writeJSONString(writer, row);
+            }
+            rowCount[0]++;
+        });
+        if (!jsonLines) {
+            writer.write(']');
+        }
+        writer.flush();
+    }
+
     @ApiOperation(value = "获取一个数据，主键作为参数以key-value形式提交")
     @RequestMapping(value = "/{tableId}", method = RequestMethod.GET)
     @WrapUpResponseBody
@@ -101,6 +159,48 @@ public class MetaObjectController extends BaseController {
         return ResponseData.makeSuccessResponse();
     }
 
+    @ApiOperation(value = "批量新增数据库表数据，返回每一行的主键或者错误信息")
+    @RequestMapping(value = "/{tableId}/bulk", method = RequestMethod.POST)
+    @WrapUpResponseBody
+    @JdbcTransaction
+    public JSONArray saveObjects(@PathVariable String tableId,
+                                 @RequestBody String jsonString) {
+        return metaObjectService.saveObjects(tableId, parseObjectList(jsonString));
+    }
+
+    @ApiOperation(value = "按主键批量新增或者修改数据库表数据，返回每一行的主键或者错误信息")
+    @RequestMapping(value = "/{tableId}/merge", method = RequestMethod.POST)
+    @WrapUpResponseBody
+    @JdbcTransaction
+    public JSONArray mergeObjects(@PathVariable String tableId,
+                                  @RequestBody String jsonString) {
+        return metaObjectService.mergeObjects(tableId, parseObjectList(jsonString));
+    }
+
+    @ApiOperation(value = "按主键批量删除数据库表数据及子表数据，返回删除的行数")
+    @RequestMapping(value = "/{tableId}/bulk", method = RequestMethod.DELETE)
+    @WrapUpResponseBody
+    @JdbcTransaction
+    public int deleteObjects(@PathVariable String tableId,
+                             @RequestBody String jsonString) {
+        return metaObjectService.deleteObjects(tableId, parseObjectList(jsonString));
+    }
+
+    private static List<Map<String, Object>> parseObjectList(String jsonString) {
+        JSONArray ja = JSON.parseArray(jsonString);
+        if (ja == null) {
+            throw new ObjectException("提交的数据不是数组");
+        }
+        List<Map<String, Object>> objects = new ArrayList<>(ja.size());
+        for (Object obj : ja) {
+            if (!(obj instanceof Map)) {
+                throw new ObjectException("数组中的每一项都必须是对象：" + obj);
+            }
+            objects.add((Map<String, Object>) obj);
+        }
+        return objects;
+    }
+
     @ApiOperation(value = "删除数据库表数据")
     @RequestMapping(value = "/{tableId}", method = RequestMethod.DELETE)
     @WrapUpResponseBody
@@ -13,6 +13,7 @@ import com.centit.product.metadata.po.MetaRelation;
 import com.centit.product.metadata.po.MetaTable;
 import com.centit.product.metadata.service.MetaDataCache;
 import com.centit.product.metadata.service.MetaDataService;
+import com.centit.product.metadata.service.MetaObjectService;
 import com.centit.product.metadata.vo.MetaTableCascade;
 import com.centit.support.algorithm.CollectionsOpt;
 import com.centit.support.algorithm.StringBaseOpt;
@@ -50,6 +51,9 @@ public class MetadataQueryController extends  BaseController {
     @Autowired
     private MetaDataCache metaDataCache;
 
+    @Autowired
+    private MetaObjectService metaObjectService;
+
     @ApiOperation(value = "数据库列表")
     @GetMapping(value = "/databases")
     @WrapUpResponseBody
@@ -131,6 +135,27 @@ public class MetadataQueryController extends  BaseController {
         return metaDataService.getMetaTableCascade(tableId, tableAlias);
     }
 
+    @ApiOperation(value = "元数据缓存统计信息，用于调整缓存容量")
+    @GetMapping(value = "/cache/statistics")
+    @WrapUpResponseBody
+    public Map<String, Object> getCacheStatistics(){
+        return metaDataCache.getCacheStatistics();
+    }
+
+    @ApiOperation(value = "预编译语句缓存统计信息，按数据库统计命中率，用于调整缓存大小")
+    @GetMapping(value = "/cache/statements")
+    @WrapUpResponseBody
+    public Map<String, Object> getStatementCacheStatistics(){
+        return metaObjectService.getStatementCacheStatistics();
+    }
+
+    @ApiOperation(value = "子表按差异保存的统计信息，提交的行数和实际写入的行数")
+    @GetMapping(value = "/tabulation/statistics")
+    @WrapUpResponseBody
+    public Map<String, Object> getTabulationStatistics(){
+        return metaObjectService.getTabulationStatistics();
+    }
+
     @ApiOperation(value = "查询单个列参照数据， REFERENCE_TYPE！=‘0’有效")
     @ApiImplicitParams(value = {
         @ApiImplicitParam(name = "tableId", value = "表元数据ID"),
@@ -0,0 +1,16 @@
+package com.centit.product.metadata.dao;
+
+import com.centit.framework.jdbc.dao.BaseDaoImpl;
+import com.centit.product.metadata.po.MetaRelDetail;
+import org.springframework.stereotype.Repository;
+
+import java.io.Serializable;
+import java.util.Map;
+
+@Repository
+public class MetaRelDetailDao extends BaseDaoImpl<MetaRelDetail, Serializable> {
+    @Override
+    public Map<String, String> getFilterField() {
+        return null;
+    }
+}
@@ -4,13 +4,24 @@ import com.centit.framework.core.dao.CodeBook;
 import com.centit.framework.jdbc.dao.BaseDaoImpl;
 import com.centit.product.metadata.po.MetaTable;
 import com.centit.support.algorithm.CollectionsOpt;
+import com.centit.support.algorithm.StringBaseOpt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.stereotype.Repository;
 
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Repository
 public class MetaTableDao extends BaseDaoImpl<MetaTable, String> {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetaTableDao.class);
+
     @Override
     public Map<String, String> getFilterField() {
         Map<String, String> filterField = new HashMap<>();
@@ -27,4 +38,81 @@ public class MetaTableDao extends BaseDaoImpl<MetaTable, String> {
         return super.getObjectByProperties(
             CollectionsOpt.createHashMap("databaseCode",databaseCode,"tableName",tableName));
     }
+
+    /**
+     * 元数据版本表中唯一的一行
+     */
+    private static final String METADATA_VERSION_ID = "METADATA";
+
+    /**
+     * 版本表 F_MD_VERSION 是否存在，没有执行升级脚本的数据库不更新版本号，避免元数据写入失败
+     */
+    private volatile Boolean versionTableExists;
+
+    private volatile boolean versionRowMissingLogged;
+
+    private boolean checkVersionTable() {
+        Boolean exists = versionTableExists;
+        if (exists == null) {
+            exists = this.jdbcTemplate.execute((ConnectionCallback<Boolean>) conn -> {
+                DatabaseMetaData dbmd = conn.getMetaData();
+                for (String tableName : new String[]{"F_MD_VERSION", "f_md_version"}) {
+                    try (ResultSet rs = dbmd.getTables(null, null, tableName, null)) {
+                        if (rs.next()) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            });
+            versionTableExists = exists;
+        }
+        return exists;
+    }
+
+    /**
+     * 元数据版本号加一，元数据的每次修改（包括关联明细）都调用，和修改在同一个事务中；
+     * 版本行由建表脚本初始化，这里只更新，不会出现两个事务同时插入的主键冲突
+     */
+    public void bumpMetadataVersion() {
+        if (!checkVersionTable()) {
+            return;
+        }
+        int rows = this.jdbcTemplate.update(
+            "update F_MD_VERSION set VERSION_NO = VERSION_NO + 1, UPDATE_DATE = ? where VERSION_ID = ?",
+            new Date(), METADATA_VERSION_ID);
+        if (rows == 0 && !versionRowMissingLogged) {
+            versionRowMissingLogged = true;
+            logger.warn("元数据版本表 F_MD_VERSION 中没有 VERSION_ID 为 " + METADATA_VERSION_ID
+                + " 的记录，请执行升级脚本初始化，否则其他节点只能通过记录数和修改时间发现元数据变化");
+        }
+    }
+
+    /**
+     * 元数据版本，由版本表中的版本号和表、字段、关联、关联明细的记录数以及最后修改时间组成，只用聚合查询；
+     * 通过程序修改元数据（包括关联明细）时版本号一定变化，直接修改数据库中的元数据表由记录数和修改时间发现，
+     * 关联明细没有修改时间，直接在数据库中修改明细的字段而不改变记录数时发现不了
+     * @return 元数据版本
+     */
+    public String fetchMetadataVersion() {
+        StringBuilder version = new StringBuilder(128);
+        if (checkVersionTable()) {
+            List<Map<String, Object>> versionRows = this.jdbcTemplate.queryForList(
+                "select VERSION_NO from F_MD_VERSION where VERSION_ID = ?", METADATA_VERSION_ID);
+            version.append(versionRows.isEmpty() ? "0"
+                : StringBaseOpt.castObjectToString(versionRows.get(0).values().iterator().next(), "0"))
+                .append(';');
+        }
+        List<Map<String, Object>> rows = this.jdbcTemplate.queryForList(
+            "select count(*) as ROW_COUNT, max(RECORD_DATE) as LAST_DATE from F_MD_TABLE" +
+            " union all select count(*), max(LAST_MODIFY_DATE) from F_MD_COLUMN" +
+            " union all select count(*), max(LAST_MODIFY_DATE) from F_MD_RELATION" +
+            " union all select count(*), null from F_MD_REL_DETAIL");
+        for (Map<String, Object> row : rows) {
+            for (Object value : row.values()) {
+                version.append(StringBaseOpt.castObjectToString(value, "")).append(';');
+            }
+        }
+        return version.toString();
+    }
 }
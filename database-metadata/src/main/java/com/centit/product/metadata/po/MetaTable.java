@@ -1,17 +1,9 @@
 package com.centit.product.metadata.po;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.annotation.JSONField;
-import com.centit.framework.components.CodeRepositoryUtil;
 import com.centit.framework.core.dao.DictionaryMap;
 import com.centit.framework.core.dao.DictionaryMapColumn;
-import com.centit.product.metadata.dao.DatabaseInfoDao;
-import com.centit.product.metadata.service.impl.SqlDictionaryMapSupplier;
-import com.centit.support.algorithm.CollectionsOpt;
-import com.centit.support.algorithm.StringBaseOpt;
-import com.centit.support.common.CachedObject;
-import com.centit.support.common.ICachedObject;
+import com.centit.product.metadata.service.MetaDataCache;
 import com.centit.support.database.metadata.SimpleTableInfo;
 import com.centit.support.database.metadata.TableInfo;
 import com.centit.support.database.metadata.TableReference;
@@ -19,10 +11,12 @@ import com.centit.support.database.orm.GeneratorCondition;
 import com.centit.support.database.orm.GeneratorType;
 import com.centit.support.database.orm.ValueGenerator;
 import com.centit.support.database.utils.DBType;
-import com.centit.support.security.Md5Encoder;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.validator.constraints.Length;
 
@@ -32,7 +26,6 @@ import javax.validation.constraints.Pattern;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author codefan
@@ -186,6 +179,33 @@ public class MetaTable implements TableInfo, java.io.Serializable {
     @ApiModelProperty(hidden = true)
     private DBType databaseType;
 
+    /**
+     * 根据字段预先计算好的访问计划，替换字段列表、增删字段时清空，下次使用时重新构建
+     */
+    @Transient
+    @JSONField(serialize = false, deserialize = false)
+    @ApiModelProperty(hidden = true)
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile MetaTableAccessPlan accessPlan;
+
+    public MetaTableAccessPlan fetchAccessPlan() {
+        List<MetaColumn> columns = getMdColumns();
+        MetaTableAccessPlan plan = this.accessPlan;
+        if (plan == null || !plan.isBuiltFrom(columns)) {
+            plan = new MetaTableAccessPlan(columns);
+            this.accessPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * 直接修改了字段的属性（字段名、类型、主键、字典等）后调用，下次使用时重新构建访问计划
+     */
+    public void invalidateAccessPlan() {
+        this.accessPlan = null;
+    }
+
     public void setDatabaseType(DBType databaseType) {
         this.databaseType = databaseType;
         if (this.mdColumns != null) {
@@ -201,16 +221,23 @@ public class MetaTable implements TableInfo, java.io.Serializable {
         return this.mdColumns;
     }
 
+    public void setMdColumns(List<MetaColumn> mdColumns) {
+        this.mdColumns = mdColumns;
+        this.accessPlan = null;
+    }
+
     public void addMdColumn(MetaColumn mdColumn) {
         if (this.mdColumns == null)
             this.mdColumns = new ArrayList<>();
         this.mdColumns.add(mdColumn);
+        this.accessPlan = null;
     }
 
     public void removeMdColumn(MetaColumn mdColumn) {
         if (this.mdColumns == null)
             return;
         this.mdColumns.remove(mdColumn);
+        this.accessPlan = null;
     }
 
     public MetaColumn newMdColumn() {
@@ -314,33 +341,14 @@ public class MetaTable implements TableInfo, java.io.Serializable {
     public MetaColumn findFieldByName(String name) {
         if (mdColumns == null)
             return null;
-
-        for (MetaColumn c : mdColumns) {
-            if (c.getPropertyName().equals(name))
-                return c;
-        }
-
-        for (MetaColumn c : mdColumns) {
-            if (c.getFieldLabelName().equalsIgnoreCase(name))
-                return c;
-        }
-        return null;
+        return fetchAccessPlan().findFieldByName(name);
     }
 
     @Override
     public MetaColumn findFieldByColumn(String name) {
         if (mdColumns == null)
             return null;
-        for (MetaColumn c : mdColumns) {
-            if (c.getColumnName().equalsIgnoreCase(name))
-                return c;
-        }
-
-        for (MetaColumn c : mdColumns) {
-            if (c.getPropertyName().equals(name))
-                return c;
-        }
-        return null;
+        return fetchAccessPlan().findFieldByColumn(name);
     }
 
     @Override
@@ -362,70 +370,14 @@ public class MetaTable implements TableInfo, java.io.Serializable {
         return this.tableLabelName;
     }
 
-    public List<DictionaryMapColumn> fetchDictionaryMapColumns(DatabaseInfoDao databaseInfoDao){
+    /**
+     * 数据字典映射字段在表元数据不变时只解析一次，保存在访问计划中
+     */
+    public List<DictionaryMapColumn> fetchDictionaryMapColumns(MetaDataCache metaDataCache){
         if(mdColumns == null || mdColumns.size()==0){
             return null;
         }
-        List<DictionaryMapColumn> dictionaryMapColumns = new ArrayList<>(4);
-        for(MetaColumn mc : mdColumns){
-            //dictionary; 解析 mc.getReferenceData() json
-            if("1".equals(mc.getReferenceType())){
-                if(mc.getReferenceData().startsWith("{")){
-                    Object jsonObject = JSON.parse(mc.getReferenceData());
-                    if(jsonObject instanceof JSONObject){
-                        for(Map.Entry<String, Object> ent: ((JSONObject)jsonObject).entrySet()){
-                            dictionaryMapColumns.add(new DictionaryMapColumn(
-                                mc.getPropertyName(),
-                                ent.getKey(),
-                                StringBaseOpt.castObjectToString(ent.getValue())
-                            ));
-                        }
-                    }
-                } else {
-                    dictionaryMapColumns.add(new DictionaryMapColumn(
-                        mc.getPropertyName(),
-                        mc.getPropertyName() + "Desc",
-                        mc.getReferenceData()
-                    ));
-                }
-            } else // JSON
-                if("2".equals(mc.getReferenceType())){
-                    String jsonStr = mc.getReferenceData().trim();
-                    String catalogCode = Md5Encoder.encodeBase64(jsonStr, true);
-                    boolean hasDictoinary = CodeRepositoryUtil.hasExtendedDictionary(catalogCode);
-                    if(!hasDictoinary){
-                        Object jsonObject = JSON.parse(jsonStr);
-                        if(jsonObject instanceof Map) {
-                            CodeRepositoryUtil.registeExtendedCodeRepo(catalogCode,
-                                CollectionsOpt.objectMapToStringMap((Map)jsonObject));
-                            hasDictoinary = true;
-                        }
-                    }
-                    if(hasDictoinary){
-                        dictionaryMapColumns.add(new DictionaryMapColumn(
-                            mc.getPropertyName(),
-                            mc.getPropertyName()+"Desc",
-                            catalogCode));
-                    }
-            } else // sql语句
-                if("3".equals(mc.getReferenceType())){
-                    String sqlStr = mc.getReferenceData().trim();
-                    String catalogCode = Md5Encoder.encodeBase64(sqlStr, true);
-                    if(!CodeRepositoryUtil.hasExtendedDictionary(catalogCode)){
-                        CodeRepositoryUtil.registeExtendedCodeRepo(catalogCode,
-                            new CachedObject<>(
-                                new SqlDictionaryMapSupplier(
-                                    databaseInfoDao.getDatabaseInfoById(this.getDatabaseCode()),
-                                    sqlStr),
-                                ICachedObject.KEEP_FRESH_PERIOD * 3));
-                    }
-                    dictionaryMapColumns.add(new DictionaryMapColumn(
-                        mc.getPropertyName(),
-                        mc.getPropertyName()+"Desc",
-                        catalogCode));
-            }
-        }
-        return dictionaryMapColumns;
+        return fetchAccessPlan().fetchDictionaryMapColumns(this.getDatabaseCode(), metaDataCache);
     }
 
 }
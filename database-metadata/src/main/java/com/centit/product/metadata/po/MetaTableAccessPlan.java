@@ -0,0 +1,388 @@
+package com.centit.product.metadata.po;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.centit.framework.components.CodeRepositoryUtil;
+import com.centit.framework.core.dao.DictionaryMapColumn;
+import com.centit.product.metadata.service.MetaDataCache;
+import com.centit.product.metadata.service.impl.SqlDictionaryMapSupplier;
+import com.centit.support.algorithm.*;
+import com.centit.support.common.CachedObject;
+import com.centit.support.common.ICachedObject;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.security.Md5Encoder;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 表的访问计划，根据表的字段预先计算好按名称查找字段的索引、主键字段、
+ * 自动生成值的字段、保存时的类型转换和数据字典字段，
+ * 表元数据不变时重复使用，避免每次请求都遍历所有字段。
+ */
+public class MetaTableAccessPlan {
+
+    private final List<MetaColumn> sourceColumns;
+    private final int sourceSize;
+
+    private final Map<String, MetaColumn> propertyIndex;
+    private final Map<String, MetaColumn> labelIndex;
+    private final Map<String, MetaColumn> columnIndex;
+    private final Map<String, MetaColumn> upperColumnIndex;
+
+    private final MetaColumn[] columns;
+    private final String[] propertyNames;
+    private final MetaColumn[] pkColumns;
+    private final String[] pkProperties;
+    private final MetaColumn[] generatorColumns;
+    private final String[] generatorProperties;
+    private final MetaColumn[] dictionaryColumns;
+
+    /**
+     * 保存时需要转换类型的字段，和 converters 一一对应
+     */
+    private final String[] convertProperties;
+    private final Function<Object, Object>[] converters;
+
+    /**
+     * 解析好的数据字典映射字段，第一次使用时构建
+     */
+    private volatile List<DictionaryMapColumn> dictionaryMapColumns;
+    /**
+     * 需要注册到 CodeRepositoryUtil 中的扩展字典（JSON和SQL），和 extendedRegisters 一一对应
+     */
+    private String[] extendedCatalogs;
+    private Runnable[] extendedRegisters;
+
+    /**
+     * 每个表最多缓存的语句模板数量，超出后淘汰最久没有使用的模板，避免过滤条件组合过多时占用过多内存
+     */
+    private static final int MAX_SQL_TEMPLATES = 256;
+
+    private static final class SqlTemplate {
+        final Object template;
+        volatile long lastAccess;
+
+        SqlTemplate(Object template) {
+            this.template = template;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    /**
+     * 按元数据拼接好的语句模板，表元数据变化后访问计划重建，模板随之失效；
+     * 读取时只记录访问时间，超出容量时在写入线程中淘汰
+     */
+    private final ConcurrentHashMap<String, SqlTemplate> sqlTemplates = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public MetaTableAccessPlan(List<MetaColumn> mdColumns) {
+        List<MetaColumn> columns = mdColumns == null ? Collections.emptyList() : mdColumns;
+        this.sourceColumns = mdColumns;
+        this.sourceSize = columns.size();
+        int capacity = sourceSize * 4 / 3 + 1;
+        propertyIndex = new HashMap<>(capacity);
+        labelIndex = new HashMap<>(capacity);
+        columnIndex = new HashMap<>(capacity);
+        upperColumnIndex = new HashMap<>(capacity);
+
+        List<MetaColumn> pks = new ArrayList<>(2);
+        List<MetaColumn> generators = new ArrayList<>(4);
+        List<MetaColumn> dictionaries = new ArrayList<>(4);
+        List<String> convertProps = new ArrayList<>(sourceSize);
+        List<Function<Object, Object>> convertFuncs = new ArrayList<>(sourceSize);
+        // 和逐个遍历时一样，同名时以排在前面的字段为准
+        for (MetaColumn column : columns) {
+            String propertyName = column.getPropertyName();
+            propertyIndex.putIfAbsent(propertyName, column);
+            if (column.getFieldLabelName() != null) {
+                labelIndex.putIfAbsent(column.getFieldLabelName().toLowerCase(), column);
+            }
+            if (column.getColumnName() != null) {
+                columnIndex.putIfAbsent(column.getColumnName(), column);
+                upperColumnIndex.putIfAbsent(column.getColumnName().toUpperCase(), column);
+            }
+            if (column.isPrimaryKey()) {
+                pks.add(column);
+            }
+            if (StringUtils.equalsAny(column.getAutoCreateRule(), "C", "U", "S", "F", "O")) {
+                generators.add(column);
+            }
+            if (StringUtils.equalsAny(column.getReferenceType(), "1", "2", "3")
+                && StringUtils.isNotBlank(column.getReferenceData())) {
+                dictionaries.add(column);
+            }
+            Function<Object, Object> converter = mapConverter(column.getFieldType());
+            if (converter != null) {
+                convertProps.add(propertyName);
+                convertFuncs.add(converter);
+            }
+        }
+        this.columns = columns.toArray(new MetaColumn[0]);
+        propertyNames = fetchPropertyNames(this.columns);
+        pkColumns = pks.toArray(new MetaColumn[0]);
+        pkProperties = fetchPropertyNames(pkColumns);
+        generatorColumns = generators.toArray(new MetaColumn[0]);
+        generatorProperties = fetchPropertyNames(generatorColumns);
+        dictionaryColumns = dictionaries.toArray(new MetaColumn[0]);
+        convertProperties = convertProps.toArray(new String[0]);
+        converters = convertFuncs.toArray(new Function[0]);
+    }
+
+    private static String[] fetchPropertyNames(MetaColumn[] columns) {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].getPropertyName();
+        }
+        return names;
+    }
+
+    /**
+     * 保存数据时的类型转换，和原来 prepareObjectForSave 中的规则一致
+     */
+    private static Function<Object, Object> mapConverter(String fieldType) {
+        if (fieldType == null) {
+            return null;
+        }
+        switch (fieldType) {
+            case FieldType.DATE:
+            case FieldType.DATETIME:
+            case FieldType.TIMESTAMP:
+                return DatetimeOpt::castObjectToSqlTimestamp;
+            case FieldType.INTEGER:
+            case FieldType.LONG:
+                return NumberBaseOpt::castObjectToLong;
+            case FieldType.MONEY:
+                return NumberBaseOpt::castObjectToBigDecimal;
+            case FieldType.FLOAT:
+            case FieldType.DOUBLE:
+                return NumberBaseOpt::castObjectToDouble;
+            case FieldType.STRING:
+            case FieldType.TEXT:
+                return StringBaseOpt::castObjectToString;
+            case FieldType.BOOLEAN:
+                return (value) -> BooleanBaseOpt.castObjectToBoolean(value, false) ?
+                    BooleanBaseOpt.ONE_CHAR_TRUE : BooleanBaseOpt.ONE_CHAR_FALSE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 只比较字段列表对象和长度，不遍历字段：缓存中的表发布的是不可修改的列表，
+     * 直接修改字段属性的调用者需要调用 MetaTable.invalidateAccessPlan
+     */
+    public boolean isBuiltFrom(List<MetaColumn> columns) {
+        return sourceColumns == columns && sourceSize == (columns == null ? 0 : columns.size());
+    }
+
+    /**
+     * 先按属性名精确查找，再按字段中文名忽略大小写查找
+     */
+    public MetaColumn findFieldByName(String name) {
+        if (name == null) {
+            return null;
+        }
+        MetaColumn column = propertyIndex.get(name);
+        if (column != null) {
+            return column;
+        }
+        return labelIndex.get(name.toLowerCase());
+    }
+
+    /**
+     * 先按字段名忽略大小写查找，再按属性名精确查找
+     */
+    public MetaColumn findFieldByColumn(String name) {
+        if (name == null) {
+            return null;
+        }
+        MetaColumn column = columnIndex.get(name);
+        if (column != null) {
+            return column;
+        }
+        column = upperColumnIndex.get(name.toUpperCase());
+        if (column != null) {
+            return column;
+        }
+        return propertyIndex.get(name);
+    }
+
+    /**
+     * 按保存规则转换对象中的字段值
+     */
+    public Map<String, Object> convertObjectForSave(Map<String, Object> object) {
+        for (int i = 0; i < convertProperties.length; i++) {
+            Object fieldValue = object.get(convertProperties[i]);
+            if (fieldValue != null) {
+                object.put(convertProperties[i], converters[i].apply(fieldValue));
+            }
+        }
+        return object;
+    }
+
+    /**
+     * 获取数据字典映射字段，表元数据不变时 referenceData 只解析一次；
+     * 扩展字典被清除后会重新注册，不需要重新解析
+     * @param databaseCode sql字典所在的数据库
+     * @param metaDataCache 用于获取数据源
+     * @return 数据字典映射字段
+     */
+    public List<DictionaryMapColumn> fetchDictionaryMapColumns(String databaseCode, MetaDataCache metaDataCache) {
+        List<DictionaryMapColumn> mapColumns = dictionaryMapColumns;
+        if (mapColumns == null) {
+            synchronized (this) {
+                mapColumns = dictionaryMapColumns;
+                if (mapColumns == null) {
+                    mapColumns = compileDictionaryMapColumns(databaseCode, metaDataCache);
+                    dictionaryMapColumns = mapColumns;
+                }
+            }
+        }
+        for (int i = 0; i < extendedCatalogs.length; i++) {
+            if (!CodeRepositoryUtil.hasExtendedDictionary(extendedCatalogs[i])) {
+                extendedRegisters[i].run();
+            }
+        }
+        return mapColumns;
+    }
+
+    private List<DictionaryMapColumn> compileDictionaryMapColumns(String databaseCode, MetaDataCache metaDataCache) {
+        List<DictionaryMapColumn> mapColumns = new ArrayList<>(dictionaryColumns.length + 2);
+        List<String> catalogs = new ArrayList<>(dictionaryColumns.length);
+        List<Runnable> registers = new ArrayList<>(dictionaryColumns.length);
+        for (MetaColumn mc : dictionaryColumns) {
+            String propertyName = mc.getPropertyName();
+            //dictionary; 解析 mc.getReferenceData() json
+            if ("1".equals(mc.getReferenceType())) {
+                if (mc.getReferenceData().startsWith("{")) {
+                    Object jsonObject = JSON.parse(mc.getReferenceData());
+                    if (jsonObject instanceof JSONObject) {
+                        for (Map.Entry<String, Object> ent : ((JSONObject) jsonObject).entrySet()) {
+                            mapColumns.add(new DictionaryMapColumn(
+                                propertyName,
+                                ent.getKey(),
+                                StringBaseOpt.castObjectToString(ent.getValue())));
+                        }
+                    }
+                } else {
+                    mapColumns.add(new DictionaryMapColumn(
+                        propertyName, propertyName + "Desc", mc.getReferenceData()));
+                }
+            } else if ("2".equals(mc.getReferenceType())) {
+                // JSON
+                String jsonStr = mc.getReferenceData().trim();
+                String catalogCode = Md5Encoder.encodeBase64(jsonStr, true);
+                Object jsonObject = JSON.parse(jsonStr);
+                if (jsonObject instanceof Map) {
+                    Map<String, String> dictionary = CollectionsOpt.objectMapToStringMap((Map) jsonObject);
+                    catalogs.add(catalogCode);
+                    registers.add(() -> CodeRepositoryUtil.registeExtendedCodeRepo(catalogCode, dictionary));
+                } else if (!CodeRepositoryUtil.hasExtendedDictionary(catalogCode)) {
+                    continue;
+                }
+                mapColumns.add(new DictionaryMapColumn(
+                    propertyName, propertyName + "Desc", catalogCode));
+            } else {
+                // sql语句
+                String sqlStr = mc.getReferenceData().trim();
+                String catalogCode = Md5Encoder.encodeBase64(sqlStr, true);
+                catalogs.add(catalogCode);
+                registers.add(() -> CodeRepositoryUtil.registeExtendedCodeRepo(catalogCode,
+                    new CachedObject<>(
+                        new SqlDictionaryMapSupplier(() -> metaDataCache.getDataSource(databaseCode), sqlStr),
+                        ICachedObject.KEEP_FRESH_PERIOD * 3)));
+                mapColumns.add(new DictionaryMapColumn(
+                    propertyName, propertyName + "Desc", catalogCode));
+            }
+        }
+        extendedCatalogs = catalogs.toArray(new String[0]);
+        extendedRegisters = registers.toArray(new Runnable[0]);
+        return Collections.unmodifiableList(mapColumns);
+    }
+
+    /**
+     * 获取缓存的语句模板，没有时用 builder 生成（生成结果为null时不缓存）；模板在多个请求间共享，不能修改
+     * @param key 语句的特征（类型、字段、过滤参数名、排序等）
+     * @param builder 生成语句模板
+     * @param <T> 模板类型
+     * @return 语句模板
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T fetchSqlTemplate(String key, Function<String, T> builder) {
+        SqlTemplate cached = sqlTemplates.get(key);
+        if (cached != null) {
+            cached.lastAccess = System.nanoTime();
+            return (T) cached.template;
+        }
+        T template = builder.apply(key);
+        if (template == null) {
+            return null;
+        }
+        cached = sqlTemplates.putIfAbsent(key, new SqlTemplate(template));
+        if (cached != null) {
+            return (T) cached.template;
+        }
+        if (sqlTemplates.size() > MAX_SQL_TEMPLATES) {
+            evictSqlTemplates();
+        }
+        return template;
+    }
+
+    /**
+     * 一次淘汰八分之一最久没有使用的模板，避免每次新增模板都要排序
+     */
+    private synchronized void evictSqlTemplates() {
+        int overflow = sqlTemplates.size() - MAX_SQL_TEMPLATES;
+        if (overflow <= 0) {
+            return;
+        }
+        List<Map.Entry<String, SqlTemplate>> entries = new ArrayList<>(sqlTemplates.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, SqlTemplate> e) -> e.getValue().lastAccess));
+        int removeCount = Math.min(entries.size(), overflow + MAX_SQL_TEMPLATES / 8);
+        for (int i = 0; i < removeCount; i++) {
+            sqlTemplates.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    public int countSqlTemplates() {
+        return sqlTemplates.size();
+    }
+
+    public MetaColumn[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return 和 getColumns 一一对应的属性名
+     */
+    public String[] getPropertyNames() {
+        return propertyNames;
+    }
+
+    public MetaColumn[] getPkColumns() {
+        return pkColumns;
+    }
+
+    public String[] getPkProperties() {
+        return pkProperties;
+    }
+
+    public int countPkColumn() {
+        return pkColumns.length;
+    }
+
+    public MetaColumn[] getGeneratorColumns() {
+        return generatorColumns;
+    }
+
+    public String[] getGeneratorProperties() {
+        return generatorProperties;
+    }
+
+    public MetaColumn[] getDictionaryColumns() {
+        return dictionaryColumns;
+    }
+}
@@ -1,10 +1,71 @@
 package com.centit.product.metadata.service;
 
+import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.po.MetaTable;
+import com.centit.support.database.utils.DataSourceDescription;
+
+import java.util.Map;
 
 public interface MetaDataCache {
     MetaTable getTableInfo(String tableId);
     MetaTable getTableInfoWithRelations(String tableId);
     MetaTable getTableInfoWithParents(String tableId);
     MetaTable getTableInfoAll(String tableId);
+
+    /**
+     * 批量加载一个数据库中所有表的元数据（包括字段、关联关系）到缓存中
+     * @param databaseCode 数据库代码
+     * @return 加载的表数量
+     */
+    int warmUp(String databaseCode);
+
+    /**
+     * 从本地快照文件加载所有表的元数据，快照不存在或者和数据库中的元数据版本不一致时
+     * 从数据库加载并重新写入快照
+     * @return 加载的表数量
+     */
+    int loadSnapshot();
+
+    /**
+     * 从数据库加载所有表的元数据写入本地快照文件
+     * @return 写入的表数量
+     */
+    int saveSnapshot();
+
+    /**
+     * 让一个表的缓存失效
+     * @param tableId 表ID
+     */
+    void evictTableInfo(String tableId);
+
+    /**
+     * 让一个数据库下所有表的缓存失效
+     * @param databaseCode 数据库代码
+     */
+    void evictDatabase(String databaseCode);
+
+    /**
+     * 缓存的数据库信息，不要修改返回的对象
+     * @param databaseCode 数据库代码
+     * @return 数据库信息，不存在返回null
+     */
+    DatabaseInfo getDatabaseInfo(String databaseCode);
+
+    /**
+     * 缓存的数据源描述，密码已经解密，避免每次访问数据都查询数据库信息并解密
+     * @param databaseCode 数据库代码
+     * @return 数据源描述，数据库不存在返回null
+     */
+    DataSourceDescription getDataSource(String databaseCode);
+
+    /**
+     * 数据库连接信息变更后让缓存的数据源失效
+     * @param databaseCode 数据库代码
+     */
+    void evictDataSource(String databaseCode);
+
+    /**
+     * @return 缓存命中、未命中、加载耗时、淘汰数量等统计信息
+     */
+    Map<String, Object> getCacheStatistics();
 }
@@ -0,0 +1,25 @@
+package com.centit.product.metadata.service;
+
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+
+import java.util.function.Consumer;
+
+/**
+ * 元数据变更事件总线，所有修改元数据的地方都应该发布对应的事件
+ */
+public interface MetaDataEventBus {
+
+    /**
+     * 发布事件，如果当前在事务中，事件在事务提交后才分发
+     * @param event 变更事件
+     */
+    void publish(MetaDataChangeEvent event);
+
+    void publishTableChanged(String tableId);
+
+    void publishDatabaseChanged(String databaseCode);
+
+    void publishDataSourceChanged(String databaseCode);
+
+    void addListener(Consumer<MetaDataChangeEvent> listener);
+}
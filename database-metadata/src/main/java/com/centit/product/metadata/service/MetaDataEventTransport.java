@@ -0,0 +1,27 @@
+package com.centit.product.metadata.service;
+
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+
+import java.util.function.Consumer;
+
+/**
+ * 元数据变更事件在集群节点之间的传输方式
+ * 可以在 spring 中配置自己的实现（比如基于消息队列），
+ * 没有配置时根据 metadata.cache.bus.type 选择内置的实现
+ */
+public interface MetaDataEventTransport {
+
+    /**
+     * 开始接收其他节点的事件
+     * @param receiver 收到事件后的处理
+     */
+    void start(Consumer<MetaDataChangeEvent> receiver);
+
+    /**
+     * 把本节点的事件广播给所有节点
+     * @param event 变更事件
+     */
+    void send(MetaDataChangeEvent event);
+
+    void stop();
+}
@@ -2,13 +2,23 @@ package com.centit.product.metadata.service;
 
 import com.alibaba.fastjson.JSONArray;
 import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.vo.SeekPageResult;
 import com.centit.support.database.utils.PageDesc;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 public interface MetaObjectService {
 
+    /**
+     * 逐行处理查询结果
+     */
+    interface RowHandler {
+        void handle(Map<String, Object> row) throws IOException;
+    }
+
     Map<String, Object> getObjectById(String tableId, Map<String, Object> pk);
     Map<String, Object> getObjectWithChildren(String tableId, Map<String, Object> pk, int withChildrenDeep);
 
@@ -36,6 +46,19 @@ public interface MetaObjectService {
     int saveObject(String tableId, Map<String, Object> object);
     int saveObject(String tableId, Map<String, Object> object, Map<String, Object> extParams);
 
+    /**
+     * 批量新增数据，每一行单独生成主键，按批次写入数据库
+     * @return 和 objects 一一对应的结果，成功的包含主键 key，失败的包含错误信息 error
+     */
+    JSONArray saveObjects(String tableId, List<Map<String, Object>> objects);
+    JSONArray saveObjects(String tableId, List<Map<String, Object>> objects, Map<String, Object> extParams);
+
+    /**
+     * 按主键批量新增或者修改数据，值为null的字段不修改
+     * @return 和 objects 一一对应的结果，格式和 saveObjects 相同
+     */
+    JSONArray mergeObjects(String tableId, List<Map<String, Object>> objects);
+
     int updateObject(String tableId, Map<String, Object> object);
 
     int updateObjectFields(String tableId, final Collection<String> fields,final Map<String, Object> object);
@@ -51,6 +74,12 @@ public interface MetaObjectService {
 
     void deleteObject(String tableId, Map<String, Object> pk);
 
+    /**
+     * 按主键批量删除数据，先删除子表中关联的数据
+     * @return 主表删除的行数
+     */
+    int deleteObjects(String tableId, List<Map<String, Object>> pks);
+
     int saveObjectWithChildren(String tableId, Map<String, Object> object);
     int saveObjectWithChildren(String tableId, Map<String, Object> object, Map<String, Object> extParams);
 
@@ -70,4 +99,33 @@ public interface MetaObjectService {
 
     JSONArray paramDriverPageQueryObjects(String tableId, String paramDriverSql, Map<String, Object> params, PageDesc pageDesc);
 
+    /**
+     * 按游标分页查询，排序字段都是主键或者非空字段时按键值定位下一页，否则退回到 offset 分页
+     * @param pageToken 上一页返回的游标，为空表示第一页
+     * @param pageSize 每页行数
+     * @return 当前页数据和下一页的游标
+     */
+    SeekPageResult seekQueryObjects(String tableId, Map<String, Object> params, String [] fields,
+                                    String pageToken, int pageSize);
+
+    /**
+     * 按主键分批导出数据，每一行做完数据字典映射后交给 rowHandler，内存中只保留一批数据
+     * @param rowHandler 行处理，通常直接写到输出流
+     * @return 导出的行数
+     * @throws IOException rowHandler 写出失败
+     */
+    int exportObjects(String tableId, Map<String, Object> params, String [] fields,
+                      RowHandler rowHandler) throws IOException;
+
+    /**
+     * 预编译语句缓存的统计信息，按数据库分别统计，用于调整缓存大小
+     * @return databaseCode 对应的命中次数、命中率等
+     */
+    Map<String, Object> getStatementCacheStatistics();
+
+    /**
+     * 按差异保存子表的累计统计，提交的行数（submitted）和实际写入的行数（touched）
+     * @return 提交、写入、插入、修改、删除的行数
+     */
+    Map<String, Object> getTabulationStatistics();
 }
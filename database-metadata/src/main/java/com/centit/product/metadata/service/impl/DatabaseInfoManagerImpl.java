@@ -6,6 +6,7 @@ import com.centit.framework.jdbc.service.BaseEntityManagerImpl;
 import com.centit.product.metadata.dao.DatabaseInfoDao;
 import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.service.DatabaseInfoManager;
+import com.centit.product.metadata.service.MetaDataEventBus;
 import com.centit.support.database.utils.PageDesc;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -22,6 +23,9 @@ public class DatabaseInfoManagerImpl extends BaseEntityManagerImpl<DatabaseInfo,
 
     //private static final SysOptLog sysOptLog = SysOptLogFactoryImpl.getSysOptLog();
 
+    @Autowired
+    private MetaDataEventBus metaDataEventBus;
+
     @Override
     @Autowired
     public void setBaseDao(DatabaseInfoDao baseDao) {
@@ -42,6 +46,7 @@ public class DatabaseInfoManagerImpl extends BaseEntityManagerImpl<DatabaseInfo,
     @Override
     public void saveNewObject(DatabaseInfo databaseInfo) {
         baseDao.saveNewObject(databaseInfo);
+        metaDataEventBus.publishDataSourceChanged(databaseInfo.getDatabaseCode());
     }
 
     @Override
@@ -53,6 +58,13 @@ public class DatabaseInfoManagerImpl extends BaseEntityManagerImpl<DatabaseInfo,
     public void mergeObject(DatabaseInfo databaseInfo){
 
         baseDao.mergeObject(databaseInfo);
+        metaDataEventBus.publishDataSourceChanged(databaseInfo.getDatabaseCode());
+    }
+
+    @Override
+    public void deleteObjectById(String databaseCode){
+        baseDao.deleteObjectById(databaseCode);
+        metaDataEventBus.publishDataSourceChanged(databaseCode);
     }
 
     @Override
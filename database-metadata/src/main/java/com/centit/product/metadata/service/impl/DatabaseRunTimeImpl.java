@@ -1,9 +1,8 @@
 package com.centit.product.metadata.service.impl;
 
 import com.alibaba.fastjson.JSONArray;
-import com.centit.product.metadata.dao.DatabaseInfoDao;
-import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.service.DatabaseRunTime;
+import com.centit.product.metadata.service.MetaDataCache;
 import com.centit.support.common.ObjectException;
 import com.centit.support.database.transaction.ConnectThreadHolder;
 import com.centit.support.database.utils.DataSourceDescription;
@@ -20,11 +19,15 @@ import java.sql.SQLException;
 public class DatabaseRunTimeImpl implements DatabaseRunTime {
 
     @Autowired
-    private DatabaseInfoDao databaseInfoDao;
+    private MetaDataCache metaDataCache;
 
     private DataSourceDescription fetchDataSource(String databaseCode) {
-        DatabaseInfo databaseInfo = databaseInfoDao.getDatabaseInfoById(databaseCode);
-        return DataSourceDescription.valueOf(databaseInfo);
+        DataSourceDescription dataSource = metaDataCache.getDataSource(databaseCode);
+        if (dataSource == null) {
+            throw new ObjectException(databaseCode, PersistenceException.ORM_METADATA_EXCEPTION,
+                "数据库 " + databaseCode + " 不存在！");
+        }
+        return dataSource;
     }
 
     @Override
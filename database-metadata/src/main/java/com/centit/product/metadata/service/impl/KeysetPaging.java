@@ -0,0 +1,192 @@
+package com.centit.product.metadata.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaTableAccessPlan;
+import com.centit.support.algorithm.DatetimeOpt;
+import com.centit.support.common.ObjectException;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.security.Md5Encoder;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按键值分页（seek），用上一页最后一行的排序字段值作为游标，
+ * 数据库可以直接定位到下一页的起始位置，不需要扫描并丢弃前面的行。
+ * 排序字段必须是主键或者非空字段，排序字段后面总是补上主键保证顺序唯一；
+ * 不满足条件的排序（表达式、可为空的字段）退回到 offset 分页，游标中记录的是行偏移量。
+ * 游标对客户端是不透明的，其中记录了排序语句的摘要，排序变化后旧的游标不能再使用。
+ */
+public class KeysetPaging {
+
+    static final String SEEK_PARAM_PREFIX = "_seek_";
+
+    /**
+     * 排序字段
+     */
+    static class SortKey {
+        final MetaColumn column;
+        final boolean desc;
+
+        SortKey(MetaColumn column, boolean desc) {
+            this.column = column;
+            this.desc = desc;
+        }
+    }
+
+    private KeysetPaging() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * 解析排序语句
+     * @param plan 表的访问计划
+     * @param orderBy 排序语句，不含 order by，为空时按主键排序
+     * @return 排序字段（已补上主键），不能按键值分页时返回null
+     */
+    static List<SortKey> parseSortKeys(MetaTableAccessPlan plan, String orderBy) {
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        if (pkColumns.length == 0) {
+            return null;
+        }
+        List<SortKey> sortKeys = new ArrayList<>(pkColumns.length + 2);
+        if (StringUtils.isNotBlank(orderBy)) {
+            for (String item : orderBy.split(",")) {
+                String[] words = item.trim().split("\\s+");
+                if (words.length > 2 || (words.length == 2
+                    && !StringUtils.equalsAnyIgnoreCase(words[1], "asc", "desc"))) {
+                    return null;
+                }
+                MetaColumn column = plan.findFieldByColumn(words[0]);
+                if (column == null || !(column.isPrimaryKey() || column.isMandatory())) {
+                    return null;
+                }
+                if (!containsColumn(sortKeys, column)) {
+                    sortKeys.add(new SortKey(column, words.length == 2 && "desc".equalsIgnoreCase(words[1])));
+                }
+            }
+        }
+        for (MetaColumn pk : pkColumns) {
+            if (!containsColumn(sortKeys, pk)) {
+                sortKeys.add(new SortKey(pk, false));
+            }
+        }
+        return sortKeys;
+    }
+
+    private static boolean containsColumn(List<SortKey> sortKeys, MetaColumn column) {
+        for (SortKey key : sortKeys) {
+            if (key.column == column) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String buildOrderBy(List<SortKey> sortKeys) {
+        StringBuilder orderBy = new StringBuilder();
+        for (SortKey key : sortKeys) {
+            if (orderBy.length() > 0) {
+                orderBy.append(", ");
+            }
+            orderBy.append(key.column.getColumnName()).append(key.desc ? " desc" : " asc");
+        }
+        return orderBy.toString();
+    }
+
+    /**
+     * 生成 (a > :v0) or (a = :v0 and b > :v1) ... 形式的条件，支持各字段排序方向不同
+     * @param sortKeys 排序字段
+     * @param keyValues 上一页最后一行的排序字段值
+     * @param params 查询参数，条件中的参数放入其中
+     * @return 条件语句
+     */
+    static String buildSeekFilter(List<SortKey> sortKeys, JSONArray keyValues, Map<String, Object> params) {
+        StringBuilder filter = new StringBuilder("(");
+        for (int i = 0; i < sortKeys.size(); i++) {
+            params.put(SEEK_PARAM_PREFIX + i, castKeyValue(sortKeys.get(i).column, keyValues.get(i)));
+            filter.append(i > 0 ? " or (" : "(");
+            for (int j = 0; j < i; j++) {
+                filter.append(sortKeys.get(j).column.getColumnName())
+                    .append(" = :").append(SEEK_PARAM_PREFIX).append(j).append(" and ");
+            }
+            SortKey key = sortKeys.get(i);
+            filter.append(key.column.getColumnName()).append(key.desc ? " < :" : " > :")
+                .append(SEEK_PARAM_PREFIX).append(i).append(')');
+        }
+        return filter.append(')').toString();
+    }
+
+    /**
+     * 游标中的日期以毫秒数保存，查询时转换回时间类型
+     */
+    private static Object castKeyValue(MetaColumn column, Object value) {
+        if (value != null && StringUtils.equalsAny(column.getFieldType(),
+            FieldType.DATE, FieldType.DATETIME, FieldType.TIMESTAMP)) {
+            return DatetimeOpt.castObjectToSqlTimestamp(value);
+        }
+        return value;
+    }
+
+    static JSONArray fetchKeyValues(List<SortKey> sortKeys, Map<String, Object> lastRow) {
+        JSONArray keyValues = new JSONArray(sortKeys.size());
+        for (SortKey key : sortKeys) {
+            keyValues.add(lastRow.get(key.column.getPropertyName()));
+        }
+        return keyValues;
+    }
+
+    /**
+     * 表和排序语句的 MD5 摘要
+     */
+    static String makeSortSignature(String tableId, String orderBy) {
+        return Md5Encoder.encodeBase64(tableId + ':' + orderBy, true);
+    }
+
+    static String encodeSeekToken(String signature, JSONArray keyValues) {
+        JSONObject token = new JSONObject(4);
+        token.put("s", signature);
+        token.put("k", keyValues);
+        return encode(token);
+    }
+
+    static String encodeOffsetToken(String signature, int offset) {
+        JSONObject token = new JSONObject(4);
+        token.put("s", signature);
+        token.put("o", offset);
+        return encode(token);
+    }
+
+    private static String encode(JSONObject token) {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(JSON.toJSONString(token).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析游标并校验排序是否一致
+     * @return 游标内容，token 为空时返回null
+     */
+    static JSONObject decodeToken(String pageToken, String signature) {
+        if (StringUtils.isBlank(pageToken)) {
+            return null;
+        }
+        JSONObject token;
+        try {
+            token = JSON.parseObject(new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new ObjectException(pageToken, ObjectException.DATA_VALIDATE_ERROR, "分页游标格式错误！");
+        }
+        if (token == null || !StringUtils.equals(signature, token.getString("s"))) {
+            throw new ObjectException(pageToken, ObjectException.DATA_VALIDATE_ERROR,
+                "分页游标和当前的排序方式不一致，请从第一页重新查询！");
+        }
+        return token;
+    }
+}
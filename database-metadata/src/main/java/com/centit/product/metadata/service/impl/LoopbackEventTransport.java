@@ -0,0 +1,40 @@
+package com.centit.product.metadata.service.impl;
+
+import com.centit.product.metadata.service.MetaDataEventTransport;
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 同一个JVM内的事件传输，所有实例共享接收者列表，
+ * 用于单机部署或者在一个进程中模拟多个节点
+ */
+public class LoopbackEventTransport implements MetaDataEventTransport {
+
+    private static final List<Consumer<MetaDataChangeEvent>> RECEIVERS = new CopyOnWriteArrayList<>();
+
+    private Consumer<MetaDataChangeEvent> receiver;
+
+    @Override
+    public void start(Consumer<MetaDataChangeEvent> receiver) {
+        this.receiver = receiver;
+        RECEIVERS.add(receiver);
+    }
+
+    @Override
+    public void send(MetaDataChangeEvent event) {
+        for (Consumer<MetaDataChangeEvent> r : RECEIVERS) {
+            r.accept(event);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (receiver != null) {
+            RECEIVERS.remove(receiver);
+            receiver = null;
+        }
+    }
+}
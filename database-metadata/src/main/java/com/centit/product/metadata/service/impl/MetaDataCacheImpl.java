@@ -1,98 +1,556 @@
 package com.centit.product.metadata.service.impl;
 
+import com.centit.product.metadata.dao.DatabaseInfoDao;
+import com.centit.product.metadata.dao.MetaColumnDao;
+import com.centit.product.metadata.dao.MetaRelDetailDao;
 import com.centit.product.metadata.dao.MetaRelationDao;
 import com.centit.product.metadata.dao.MetaTableDao;
+import com.centit.product.metadata.po.DatabaseInfo;
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaRelDetail;
 import com.centit.product.metadata.po.MetaRelation;
 import com.centit.product.metadata.po.MetaTable;
 import com.centit.product.metadata.service.MetaDataCache;
-import com.centit.support.common.CachedMap;
-import org.apache.commons.lang3.tuple.MutablePair;
+import com.centit.product.metadata.service.MetaDataEventBus;
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+import com.centit.support.database.utils.DataSourceDescription;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 @Service
 public class MetaDataCacheImpl implements MetaDataCache {
 
+    private static final Logger logger = LoggerFactory.getLogger(MetaDataCacheImpl.class);
+
+    private static final int REFRESH_THREADS = 2;
+
+    /**
+     * 缓存的总权重，每个表的权重为 1 + 字段数 + 关联数
+     */
+    @Value("${metadata.cache.maxWeight:200000}")
+    private long maxWeight;
+
+    /**
+     * 元数据修改都会通过 MetaDataEventBus 让缓存失效，过期时间只是用来兜底
+     * 直接修改数据库中元数据表的情况，可以设置得比较长
+     */
+    @Value("${metadata.cache.expireMinutes:1440}")
+    private long expireMinutes;
+
+    /**
+     * 写入后定时刷新，默认不刷新，缓存依靠变更事件失效；
+     * 设置后到期的表在后台刷新，刷新完成前仍然返回旧的快照
+     */
+    @Value("${metadata.cache.refreshMinutes:0}")
+    private long refreshMinutes;
+
+    /**
+     * 不存在的表id记录的时间，秒，小于等于0表示不记录
+     */
+    @Value("${metadata.cache.negativeSeconds:60}")
+    private long negativeSeconds;
+
     /**
-     * Integer 11 parent,relation
+     * 最多记录多少个不存在的表id，超出时先丢弃过期的记录
      */
-    private CachedMap<String, MutablePair<Integer, MetaTable>> metaTableCache =
-        new CachedMap<>(
-            ( tableId )-> new MutablePair<>(0, this.getTableInfoWithColumns(tableId)),
-            10);
+    @Value("${metadata.cache.negativeMaxSize:10000}")
+    private int negativeMaxSize;
+
+    /**
+     * 元数据快照文件，设置后启动时从快照加载所有表的元数据，不再预加载单个数据库
+     */
+    @Value("${metadata.cache.snapshot.file:}")
+    private String snapshotFile;
+
+    /**
+     * 启动时预先加载元数据的数据库，多个用逗号分隔
+     */
+    @Value("${metadata.cache.warmup.databases:}")
+    private String warmUpDatabases;
+
+    /**
+     * 定时检查元数据版本的间隔，秒，版本变化时清空表缓存，补救丢失的组播事件；
+     * 小于0时组播方式按60秒检查、其他方式不检查，0表示不检查
+     */
+    @Value("${metadata.cache.reconcileSeconds:-1}")
+    private long reconcileSeconds;
+
+    @Value("${metadata.cache.bus.type:none}")
+    private String busType;
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    /**
+     * 最近一次检查时的元数据版本
+     */
+    private volatile String reconciledVersion;
+
+    /**
+     * 缓存的是完整构建好的表元数据快照（字段、关联、父表、关联明细），
+     * 快照发布后不再修改，元数据变更时整体替换，读取时不需要加锁也不会再去加载关联
+     */
+    private SegmentedLruCache<String, MetaTable> metaTableCache;
+
+    /**
+     * 查找过但不存在的表id和过期时间，避免错误的表id反复查询元数据库；
+     * 读取不加锁，超过 negativeMaxSize 时在写入时清理
+     */
+    private final ConcurrentHashMap<String, Long> missingTables = new ConcurrentHashMap<>();
+
+    /**
+     * 每次清除不存在的记录前加一，加载期间发生过清除时，加载得到的“不存在”已经过时，不再记录
+     */
+    private final AtomicLong missingGeneration = new AtomicLong();
+
+    private final LongAdder negativeHitCount = new LongAdder();
+
+    /**
+     * 数据库信息和解密后的数据源，数据库数量很少，不需要限制容量
+     */
+    private final ConcurrentHashMap<String, DataSourceEntry> dataSources = new ConcurrentHashMap<>();
+
+    /**
+     * 数据源失效的版本号，加载期间发生失效时加载结果不放入缓存
+     */
+    private final AtomicLong dataSourceVersion = new AtomicLong(0);
+
+    private static final class DataSourceEntry {
+        final DatabaseInfo databaseInfo;
+        final DataSourceDescription dataSource;
+
+        DataSourceEntry(DatabaseInfo databaseInfo, DataSourceDescription dataSource) {
+            this.databaseInfo = databaseInfo;
+            this.dataSource = dataSource;
+        }
+    }
+
+    @Autowired
+    private DatabaseInfoDao databaseInfoDao;
 
     @Autowired
     private MetaTableDao metaTableDao;
 
+    @Autowired
+    private MetaColumnDao metaColumnDao;
+
     @Autowired
     private MetaRelationDao metaRelationDao;
 
-    private MetaTable getTableInfoWithColumns(String tableId){
-        MetaTable metaTable = this.metaTableDao.getObjectById(tableId);
-        metaTableDao.fetchObjectReference(metaTable, "mdColumns");//mdRelations
-        return metaTable;
+    @Autowired
+    private MetaRelDetailDao metaRelDetailDao;
+
+    @Autowired
+    private MetaDataEventBus metaDataEventBus;
+
+    @PostConstruct
+    public void init() {
+        metaTableCache = new SegmentedLruCache<>(this::loadTableSnapshot,
+            MetaDataCacheImpl::weighMetaTable, maxWeight, expireMinutes, refreshMinutes,
+            Executors.newFixedThreadPool(REFRESH_THREADS, (runnable) -> {
+                Thread thread = new Thread(runnable, "metadata-cache-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }));
+        metaDataEventBus.addListener(this::onMetaDataChanged);
+        // 在 spring 容器初始化过程中完成预加载，应用就绪时缓存已经准备好
+        if (StringUtils.isNotBlank(snapshotFile)) {
+            try {
+                loadSnapshot();
+            } catch (RuntimeException e) {
+                logger.error("加载元数据快照失败", e);
+            }
+        } else if (StringUtils.isNotBlank(warmUpDatabases)) {
+            for (String databaseCode : StringUtils.split(warmUpDatabases, ',')) {
+                try {
+                    warmUp(StringUtils.trim(databaseCode));
+                } catch (RuntimeException e) {
+                    logger.error("预加载数据库" + databaseCode + "的元数据失败", e);
+                }
+            }
+        }
+        startReconcile();
     }
 
-    public MetaTable getTableInfo(String tableId){
-        //metaTableCache.setFreshData();
-        if (metaTableCache.getCachedValue(tableId)!=null) {
-            return metaTableCache.getCachedValue(tableId).getRight();
-        } else{
+    private void startReconcile() {
+        long seconds = reconcileSeconds >= 0 ? reconcileSeconds
+            : ("multicast".equalsIgnoreCase(busType) ? 60 : 0);
+        if (seconds <= 0) {
+            return;
+        }
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "metadata-cache-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcileVersion, 0, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 元数据版本和上次检查时不同就清空所有表的缓存；本节点自己的修改也会让版本变化，
+     * 最多多一次重新加载，不区分修改来自哪个节点
+     */
+    private void reconcileVersion() {
+        try {
+            String version = metaTableDao.fetchMetadataVersion();
+            String lastVersion = reconciledVersion;
+            reconciledVersion = version;
+            if (lastVersion != null && !lastVersion.equals(version)) {
+                int count = metaTableCache.invalidateIf((metaTable) -> true);
+                clearMissingTables();
+                logger.info("元数据版本发生变化，{}个表的缓存失效", count);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("检查元数据版本失败：" + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    private void onMetaDataChanged(MetaDataChangeEvent event) {
+        if (event.isTableChanged()) {
+            evictTableInfo(event.getCode());
+        } else if (event.isDatabaseChanged()) {
+            evictDatabase(event.getCode());
+        } else if (event.isDataSourceChanged()) {
+            evictDataSource(event.getCode());
+        }
+    }
+
+    private static int weighMetaTable(MetaTable metaTable) {
+        return 1 + metaTable.getMdColumns().size() + metaTable.getMdRelations().size()
+            + metaTable.getParents().size();
+    }
+
+    /**
+     * 加载单个表的完整快照，和预加载一样用集合查询，不再逐个关联获取明细
+     */
+    private MetaTable loadTableSnapshot(String tableId) {
+        List<MetaTable> tables = metaTableDao.listObjectsByFilter(
+            "where TABLE_ID = ?", new Object[]{tableId});
+        if (tables == null || tables.isEmpty()) {
             return null;
         }
+        List<MetaColumn> columns = metaColumnDao.listObjectsByFilter(
+            "where TABLE_ID = ?", new Object[]{tableId});
+        String relationFilter = "PARENT_TABLE_ID = ? or CHILD_TABLE_ID = ?";
+        List<MetaRelation> relations = metaRelationDao.listObjectsByFilter(
+            "where " + relationFilter, new Object[]{tableId, tableId});
+        List<MetaRelDetail> details = (relations == null || relations.isEmpty()) ? null :
+            metaRelDetailDao.listObjectsByFilter(
+                "where RELATION_ID in (select RELATION_ID from F_MD_RELATION where " + relationFilter + ")",
+                new Object[]{tableId, tableId});
+        Collection<MetaTable> snapshots = assembleTables(tables, columns, relations, details);
+        return snapshots.iterator().next();
     }
 
-    private MetaTable fetchTableRelations(MetaTable metaTable){
-        metaTableDao.fetchObjectReference(metaTable, "mdRelations");
-        if (metaTable.getMdRelations().size() > 0) {
-            for (MetaRelation mr : metaTable.getMdRelations()) {
-                metaRelationDao.fetchObjectReference(mr, "relationDetails");
+    private MetaTable fetchTableSnapshot(String tableId) {
+        if (StringUtils.isBlank(tableId)) {
+            return null;
+        }
+        if (negativeSeconds <= 0) {
+            return metaTableCache.get(tableId);
+        }
+        Long expireTime = missingTables.get(tableId);
+        if (expireTime != null) {
+            if (System.currentTimeMillis() < expireTime) {
+                negativeHitCount.increment();
+                return null;
             }
+            missingTables.remove(tableId, expireTime);
+        }
+        long generation = missingGeneration.get();
+        MetaTable metaTable = metaTableCache.get(tableId);
+        if (metaTable == null) {
+            putMissingTable(tableId, generation);
         }
         return metaTable;
     }
 
-    private MetaTable fetchTableParents(MetaTable metaTable){
-        metaTableDao.fetchObjectReference(metaTable, "parents");
-        if( metaTable.getParents().size()>0) {
-            for (MetaRelation parent : metaTable.getParents()){
-                metaRelationDao.fetchObjectReference(parent, "relationDetails");
+    /**
+     * 记录不存在的表；先写入再检查代数，和先加代数再删除记录的清除操作交错时，记录总会被其中一方删除
+     * @param generation 开始加载前的代数
+     */
+    private void putMissingTable(String tableId, long generation) {
+        long now = System.currentTimeMillis();
+        Long expireTime = now + negativeSeconds * 1000;
+        missingTables.put(tableId, expireTime);
+        if (missingGeneration.get() != generation) {
+            // 加载期间表被创建并发布了变更事件，这次的“不存在”已经过时
+            missingTables.remove(tableId, expireTime);
+            return;
+        }
+        if (missingTables.size() > negativeMaxSize) {
+            // 先清除过期的记录，仍然超出时随意丢弃一部分，丢弃的表id只是多查询一次元数据库
+            missingTables.values().removeIf((expire) -> expire <= now);
+            Iterator<String> it = missingTables.keySet().iterator();
+            while (missingTables.size() > negativeMaxSize && it.hasNext()) {
+                it.next();
+                it.remove();
             }
         }
-        return metaTable;
     }
 
+    @Override
+    public MetaTable getTableInfo(String tableId){
+        return fetchTableSnapshot(tableId);
+    }
+
+    @Override
     public MetaTable getTableInfoWithRelations(String tableId){
-        MutablePair<Integer, MetaTable> tablePair = metaTableCache.getCachedValue(tableId);
-        MetaTable metaTable = tablePair.getRight();
-        if(tablePair.getLeft() % 10 == 0){
-            fetchTableRelations(metaTable);
-            tablePair.setLeft(tablePair.getLeft() + 1);
-        }
-        return metaTable;
+        return fetchTableSnapshot(tableId);
     }
 
+    @Override
     public MetaTable getTableInfoWithParents(String tableId){
-        MutablePair<Integer, MetaTable> tablePair = metaTableCache.getCachedValue(tableId);
-        MetaTable metaTable = tablePair.getRight();
-        if(tablePair.getLeft() / 10 == 0){
-            fetchTableParents(metaTable);
-            tablePair.setLeft(tablePair.getLeft() +10);
-        }
-        return metaTable;
+        return fetchTableSnapshot(tableId);
     }
 
+    @Override
     public MetaTable getTableInfoAll(String tableId){
-        MutablePair<Integer, MetaTable> tablePair = metaTableCache.getCachedValue(tableId);
-        MetaTable metaTable = tablePair.getRight();
+        return fetchTableSnapshot(tableId);
+    }
 
-        if(tablePair.getLeft() % 10 == 0){
-            fetchTableRelations(metaTable);
+    /**
+     * 用固定的4个查询加载一个数据库中所有的表、字段、关联关系和关联明细，在内存中组装
+     * 代替逐个表 getObjectById + fetchObjectReference 的方式
+     */
+    private Collection<MetaTable> loadDatabaseTables(String databaseCode) {
+        String tableFilter = "select TABLE_ID from F_MD_TABLE where DATABASE_CODE = ?";
+        List<MetaTable> tables = metaTableDao.listObjectsByFilter(
+            "where DATABASE_CODE = ?", new Object[]{databaseCode});
+        if (tables == null || tables.isEmpty()) {
+            return Collections.emptyList();
         }
-        if(tablePair.getLeft() / 10 == 0){
-            fetchTableParents(metaTable);
+        List<MetaColumn> columns = metaColumnDao.listObjectsByFilter(
+            "where TABLE_ID in (" + tableFilter + ")", new Object[]{databaseCode});
+        String relationFilter = "PARENT_TABLE_ID in (" + tableFilter + ") or CHILD_TABLE_ID in (" + tableFilter + ")";
+        List<MetaRelation> relations = metaRelationDao.listObjectsByFilter(
+            "where " + relationFilter, new Object[]{databaseCode, databaseCode});
+        List<MetaRelDetail> details = metaRelDetailDao.listObjectsByFilter(
+            "where RELATION_ID in (select RELATION_ID from F_MD_RELATION where " + relationFilter + ")",
+            new Object[]{databaseCode, databaseCode});
+        return assembleTables(tables, columns, relations, details);
+    }
+
+    private Collection<MetaTable> loadAllTables() {
+        List<MetaTable> tables = metaTableDao.listObjects();
+        if (tables == null || tables.isEmpty()) {
+            return Collections.emptyList();
         }
-        tablePair.setLeft(11);
-        return metaTable;
+        return assembleTables(tables, metaColumnDao.listObjects(), metaRelationDao.listObjects(),
+            metaRelDetailDao.listObjects());
+    }
+
+    /**
+     * 组装表元数据快照，组装完成后所有的列表都是只读的
+     */
+    private static Collection<MetaTable> assembleTables(List<MetaTable> tables, List<MetaColumn> columns,
+                                                        List<MetaRelation> relations, List<MetaRelDetail> details) {
+        Map<String, MetaTable> tableMap = new HashMap<>(tables.size() * 4 / 3 + 1);
+        for (MetaTable table : tables) {
+            table.setMdColumns(new ArrayList<>());
+            table.setMdRelations(new ArrayList<>(4));
+            table.setParents(new ArrayList<>(4));
+            tableMap.put(table.getTableId(), table);
+        }
+        if (columns != null) {
+            columns.sort(Comparator.comparing(MetaColumn::getColumnOrder,
+                Comparator.nullsLast(Comparator.naturalOrder())));
+            for (MetaColumn column : columns) {
+                MetaTable table = tableMap.get(column.getTableId());
+                if (table != null) {
+                    table.addMdColumn(column);
+                }
+            }
+        }
+        Map<String, List<MetaRelDetail>> detailMap = new HashMap<>();
+        if (details != null) {
+            for (MetaRelDetail detail : details) {
+                detailMap.computeIfAbsent(detail.getRelationId(), (k) -> new ArrayList<>(2)).add(detail);
+            }
+        }
+        if (relations != null) {
+            for (MetaRelation relation : relations) {
+                relation.setRelationDetails(Collections.unmodifiableList(
+                    detailMap.getOrDefault(relation.getRelationId(), new ArrayList<>(0))));
+                MetaTable parent = tableMap.get(relation.getParentTableId());
+                if (parent != null) {
+                    parent.addMdRelation(relation);
+                }
+                MetaTable child = tableMap.get(relation.getChildTableId());
+                if (child != null) {
+                    child.addParent(relation);
+                }
+            }
+        }
+        for (MetaTable table : tableMap.values()) {
+            table.setMdColumns(Collections.unmodifiableList(table.getMdColumns()));
+            table.setMdRelations(Collections.unmodifiableList(table.getMdRelations()));
+            table.setParents(Collections.unmodifiableList(table.getParents()));
+            // 快照发布前构建好访问计划，读取时不再构建
+            table.fetchAccessPlan();
+        }
+        return tableMap.values();
+    }
+
+    @Override
+    public int warmUp(String databaseCode) {
+        long startTime = System.currentTimeMillis();
+        Collection<MetaTable> tables = loadDatabaseTables(databaseCode);
+        putTables(tables);
+        logger.info("预加载数据库{}的元数据，共{}个表，耗时{}ms", databaseCode, tables.size(),
+            System.currentTimeMillis() - startTime);
+        return tables.size();
+    }
+
+    @Override
+    public int loadSnapshot() {
+        long startTime = System.currentTimeMillis();
+        // 先取版本再加载，加载期间元数据有变化时，下次启动版本不一致会重新加载
+        String version = metaTableDao.fetchMetadataVersion();
+        MetaDataSnapshotFile snapshot = new MetaDataSnapshotFile(new File(snapshotFile));
+        try {
+            if (snapshot.open() && version.equals(snapshot.getMetadataVersion())) {
+                List<MetaTable> tables = snapshot.readTables();
+                if (tables != null) {
+                    putTables(tables);
+                    logger.info("从快照{}加载元数据，共{}个表，耗时{}ms", snapshotFile, tables.size(),
+                        System.currentTimeMillis() - startTime);
+                    return tables.size();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("读取元数据快照" + snapshotFile + "失败，从数据库重新加载", e);
+        }
+        Collection<MetaTable> tables = loadAllTables();
+        putTables(tables);
+        writeSnapshot(version, tables);
+        logger.info("元数据快照已过期，从数据库加载元数据，共{}个表，耗时{}ms", tables.size(),
+            System.currentTimeMillis() - startTime);
+        return tables.size();
+    }
+
+    @Override
+    public int saveSnapshot() {
+        String version = metaTableDao.fetchMetadataVersion();
+        Collection<MetaTable> tables = loadAllTables();
+        writeSnapshot(version, tables);
+        return tables.size();
+    }
+
+    private void writeSnapshot(String version, Collection<MetaTable> tables) {
+        if (StringUtils.isBlank(snapshotFile)) {
+            return;
+        }
+        try {
+            new MetaDataSnapshotFile(new File(snapshotFile)).write(version, tables);
+        } catch (IOException e) {
+            logger.error("写入元数据快照" + snapshotFile + "失败", e);
+        }
+    }
+
+    private void putTables(Collection<MetaTable> tables) {
+        for (MetaTable table : tables) {
+            table.fetchAccessPlan();
+            metaTableCache.put(table.getTableId(), table);
+        }
+        missingGeneration.incrementAndGet();
+        for (MetaTable table : tables) {
+            missingTables.remove(table.getTableId());
+        }
+    }
+
+    @Override
+    public void evictTableInfo(String tableId) {
+        metaTableCache.invalidate(tableId);
+        // 新建的表也会发送变更事件，清除不存在的记录
+        missingGeneration.incrementAndGet();
+        missingTables.remove(tableId);
+    }
+
+    @Override
+    public void evictDatabase(String databaseCode) {
+        int count = metaTableCache.invalidateIf(
+            (metaTable) -> StringUtils.equals(databaseCode, metaTable.getDatabaseCode()));
+        // 不存在的表id不知道属于哪个数据库，全部清除
+        clearMissingTables();
+        logger.debug("数据库{}的元数据发生变更，{}个表的缓存失效", databaseCode, count);
+    }
+
+    private void clearMissingTables() {
+        missingGeneration.incrementAndGet();
+        missingTables.clear();
+    }
+
+    private DataSourceEntry fetchDataSourceEntry(String databaseCode) {
+        if (StringUtils.isBlank(databaseCode)) {
+            return null;
+        }
+        DataSourceEntry entry = dataSources.get(databaseCode);
+        if (entry != null) {
+            return entry;
+        }
+        long version = dataSourceVersion.get();
+        DatabaseInfo databaseInfo = databaseInfoDao.getDatabaseInfoById(databaseCode);
+        if (databaseInfo == null) {
+            return null;
+        }
+        entry = new DataSourceEntry(databaseInfo, DataSourceDescription.valueOf(databaseInfo));
+        synchronized (dataSources) {
+            if (version == dataSourceVersion.get()) {
+                dataSources.put(databaseCode, entry);
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public DatabaseInfo getDatabaseInfo(String databaseCode) {
+        DataSourceEntry entry = fetchDataSourceEntry(databaseCode);
+        return entry == null ? null : entry.databaseInfo;
+    }
+
+    @Override
+    public DataSourceDescription getDataSource(String databaseCode) {
+        DataSourceEntry entry = fetchDataSourceEntry(databaseCode);
+        return entry == null ? null : entry.dataSource;
+    }
+
+    @Override
+    public void evictDataSource(String databaseCode) {
+        synchronized (dataSources) {
+            dataSourceVersion.incrementAndGet();
+            dataSources.remove(databaseCode);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getCacheStatistics() {
+        Map<String, Object> stats = metaTableCache.stats();
+        stats.put("negativeSize", missingTables.size());
+        stats.put("negativeHitCount", negativeHitCount.sum());
+        stats.put("dataSourceSize", dataSources.size());
+        return stats;
     }
 }
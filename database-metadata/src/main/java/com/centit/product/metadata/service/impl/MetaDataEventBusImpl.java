@@ -0,0 +1,192 @@
+package com.centit.product.metadata.service.impl;
+
+import com.centit.product.metadata.dao.MetaTableDao;
+import com.centit.product.metadata.service.MetaDataEventBus;
+import com.centit.product.metadata.service.MetaDataEventTransport;
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+import com.centit.support.algorithm.UuidOpt;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+@Service
+public class MetaDataEventBusImpl implements MetaDataEventBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetaDataEventBusImpl.class);
+
+    private static final int MAX_RECEIVED_VERSIONS = 10000;
+
+    /**
+     * 集群事件传输方式 none：只在本节点分发；loopback：同一个JVM内广播；multicast：UDP组播
+     */
+    @Value("${metadata.cache.bus.type:none}")
+    private String busType;
+
+    @Value("${metadata.cache.bus.multicast.group:230.0.0.230}")
+    private String multicastGroup;
+
+    @Value("${metadata.cache.bus.multicast.port:45230}")
+    private int multicastPort;
+
+    @Value("${metadata.cache.bus.multicast.ttl:1}")
+    private int multicastTimeToLive;
+
+    /**
+     * 组播事件签名用的共享密钥，所有节点配置相同的值
+     */
+    @Value("${metadata.cache.bus.multicast.secret:}")
+    private String multicastSecret;
+
+    @Autowired(required = false)
+    private MetaDataEventTransport eventTransport;
+
+    /**
+     * 发布事件时更新元数据版本号，用于定时检查版本和判断快照是否过期
+     */
+    @Autowired(required = false)
+    private MetaTableDao metaTableDao;
+
+    private final String nodeId = UuidOpt.getUuidAsString32();
+
+    private final List<Consumer<MetaDataChangeEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong versionSequence = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * 每个节点上每个表（数据库）最后收到的版本号，用来丢弃重复或者乱序到达的事件；
+     * 节点重启后节点id会变化，只保留最近的记录，被丢弃的记录最多导致一次重复的失效
+     */
+    private final Map<String, Long> receivedVersions = Collections.synchronizedMap(
+        new LinkedHashMap<String, Long>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_RECEIVED_VERSIONS;
+            }
+        });
+
+    public MetaDataEventBusImpl() {
+    }
+
+    /**
+     * 指定事件传输方式，不通过 spring 注入时使用（比如测试）
+     * @param eventTransport 事件传输方式
+     */
+    public MetaDataEventBusImpl(MetaDataEventTransport eventTransport) {
+        this.eventTransport = eventTransport;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (eventTransport == null) {
+            if ("loopback".equalsIgnoreCase(busType)) {
+                eventTransport = new LoopbackEventTransport();
+            } else if ("multicast".equalsIgnoreCase(busType)) {
+                eventTransport = new MulticastEventTransport(multicastGroup, multicastPort, multicastTimeToLive,
+                    multicastSecret);
+            }
+        }
+        if (eventTransport != null) {
+            eventTransport.start(this::onRemoteEvent);
+            logger.info("元数据缓存集群事件总线已启动：{}，节点：{}", eventTransport.getClass().getSimpleName(), nodeId);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (eventTransport != null) {
+            eventTransport.stop();
+        }
+    }
+
+    @Override
+    public void publish(MetaDataChangeEvent event) {
+        if (event == null || StringUtils.isBlank(event.getCode())) {
+            return;
+        }
+        event.setVersion(versionSequence.incrementAndGet());
+        event.setSourceNode(nodeId);
+        // 版本号在修改元数据的事务中更新，和修改一起提交或回滚
+        if (metaTableDao != null && !event.isDataSourceChanged()) {
+            metaTableDao.bumpMetadataVersion();
+        }
+        // 事务回滚时元数据没有变化，所以在提交后才让缓存失效，避免其他线程在提交前又加载了旧数据
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    dispatchAndBroadcast(event);
+                }
+            });
+        } else {
+            dispatchAndBroadcast(event);
+        }
+    }
+
+    private void dispatchAndBroadcast(MetaDataChangeEvent event) {
+        dispatch(event);
+        if (eventTransport != null) {
+            eventTransport.send(event);
+        }
+    }
+
+    private void onRemoteEvent(MetaDataChangeEvent event) {
+        if (event == null || nodeId.equals(event.getSourceNode())) {
+            return;
+        }
+        String versionKey = event.getSourceNode() + ":" + event.getChangeType() + ":" + event.getCode();
+        synchronized (receivedVersions) {
+            Long lastVersion = receivedVersions.get(versionKey);
+            if (lastVersion != null && lastVersion >= event.getVersion()) {
+                return;
+            }
+            receivedVersions.put(versionKey, event.getVersion());
+        }
+        dispatch(event);
+    }
+
+    protected void dispatch(MetaDataChangeEvent event) {
+        for (Consumer<MetaDataChangeEvent> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                logger.error("处理元数据变更事件出错：" + event, e);
+            }
+        }
+    }
+
+    @Override
+    public void publishTableChanged(String tableId) {
+        publish(new MetaDataChangeEvent(MetaDataChangeEvent.CHANGE_TYPE_TABLE, tableId));
+    }
+
+    @Override
+    public void publishDatabaseChanged(String databaseCode) {
+        publish(new MetaDataChangeEvent(MetaDataChangeEvent.CHANGE_TYPE_DATABASE, databaseCode));
+    }
+
+    @Override
+    public void publishDataSourceChanged(String databaseCode) {
+        publish(new MetaDataChangeEvent(MetaDataChangeEvent.CHANGE_TYPE_DATA_SOURCE, databaseCode));
+    }
+
+    @Override
+    public void addListener(Consumer<MetaDataChangeEvent> listener) {
+        listeners.add(listener);
+    }
+}
@@ -9,6 +9,7 @@ import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.po.MetaColumn;
 import com.centit.product.metadata.po.MetaRelation;
 import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.service.MetaDataEventBus;
 import com.centit.product.metadata.service.MetaDataService;
 import com.centit.product.metadata.vo.MetaTableCascade;
 import com.centit.support.algorithm.CollectionsOpt;
@@ -48,6 +49,8 @@ public class MetaDataServiceImpl implements MetaDataService {
     @Autowired
     private MetaRelationDao metaRelationDao;
 
+    @Autowired
+    private MetaDataEventBus metaDataEventBus;
 
     @Override
     public List<DatabaseInfo> listDatabase(String osId) {
@@ -175,9 +178,11 @@ public class MetaDataServiceImpl implements MetaDataService {
                         SimpleTableField newColumn = columnPair.getRight();
                         metaColumnDao.updateObject(oldColumn.convertFromTableField(newColumn));
                     }
+                    oldTable.invalidateAccessPlan();
                 }
             }
         }
+        metaDataEventBus.publishDatabaseChanged(databaseCode);
     }
 
     public static <K,V> Triple<List<K>, List<Pair<V, K>>, List<V>>
@@ -229,6 +234,7 @@ public class MetaDataServiceImpl implements MetaDataService {
     @Override
     public void updateMetaTable(MetaTable metaTable) {
         metaTableDao.updateObject(metaTable);
+        metaDataEventBus.publishTableChanged(metaTable.getTableId());
     }
 
     @Override
@@ -337,6 +343,15 @@ public class MetaDataServiceImpl implements MetaDataService {
     public void createRelation(MetaRelation relation) {
         metaRelationDao.saveNewObject(relation);
         metaRelationDao.saveObjectReferences(relation);
+        publishRelationChanged(relation);
+    }
+
+    /**
+     * 关联关系同时缓存在父表（mdRelations）和子表（parents）中
+     */
+    private void publishRelationChanged(MetaRelation relation) {
+        metaDataEventBus.publishTableChanged(relation.getParentTableId());
+        metaDataEventBus.publishTableChanged(relation.getChildTableId());
     }
 
     @Override
@@ -352,6 +367,7 @@ public class MetaDataServiceImpl implements MetaDataService {
             for(MetaRelation relation : comparedRelation.getLeft()){
                 metaRelationDao.saveNewObject(relation);
                 metaRelationDao.saveObjectReference(relation, "relationDetails");
+                publishRelationChanged(relation);
             }
         }
 
@@ -361,6 +377,7 @@ public class MetaDataServiceImpl implements MetaDataService {
                 relation = metaRelationDao.fetchObjectReferences(relation);
                 metaRelationDao.deleteObject(relation);
                 metaRelationDao.deleteObjectReference(relation, "relationDetails");
+                publishRelationChanged(relation);
             }
         }
 
@@ -377,8 +394,10 @@ public class MetaDataServiceImpl implements MetaDataService {
                 metaRelationDao.deleteObjectReference(oldRelation, "relationDetails");
                 newRelation.setRelationId(oldRelation.getRelationId());
                 metaRelationDao.saveObjectReference(newRelation, "relationDetails");
+                publishRelationChanged(oldRelation);
             }
         }
+        metaDataEventBus.publishTableChanged(tableId);
     }
 
     @Override
@@ -389,6 +408,7 @@ public class MetaDataServiceImpl implements MetaDataService {
     @Override
     public void updateMetaColumn(MetaColumn metaColumn) {
         metaColumnDao.updateObject(metaColumn);
+        metaDataEventBus.publishTableChanged(metaColumn.getTableId());
 
     }
 
@@ -0,0 +1,189 @@
+package com.centit.product.metadata.service.impl;
+
+import com.centit.product.metadata.po.MetaTable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 元数据快照文件，保存所有组装好的表元数据（字段、关联、关联明细），用于节点快速启动
+ * 文件格式：魔数、格式版本、元数据版本、表数量、内容长度、内容CRC32，然后是压缩后的表元数据
+ * 读取时通过内存映射文件读取，先只读文件头的元数据版本，版本一致时才解析内容
+ */
+public class MetaDataSnapshotFile {
+
+    private static final int MAGIC = 0x4D445350;
+    /**
+     * 表元数据类的结构发生变化时需要增加这个版本号，旧的快照会被丢弃
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+
+    private String metadataVersion;
+    private int tableCount;
+    private MappedByteBuffer payload;
+    private long payloadCrc;
+
+    public MetaDataSnapshotFile(File file) {
+        this.file = file;
+    }
+
+    public String getMetadataVersion() {
+        return metadataVersion;
+    }
+
+    public int getTableCount() {
+        return tableCount;
+    }
+
+    /**
+     * 写入快照，先写临时文件再替换，写入过程中失败不会破坏原来的快照
+     * @param version 元数据版本
+     * @param tables 组装好的表元数据
+     * @throws IOException 写文件失败
+     */
+    public void write(String version, Collection<MetaTable> tables) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(
+            new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+            out.writeObject(new ArrayList<>(tables));
+        }
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("无法创建目录：" + parent);
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            byte[] versionBytes = version.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(versionBytes.length);
+            out.write(versionBytes);
+            out.writeInt(tables.size());
+            out.writeInt(content.length);
+            out.writeLong(crc.getValue());
+            out.write(content);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 映射快照文件并读取文件头
+     * @return 文件不存在或者格式不对返回false
+     * @throws IOException 读文件失败
+     */
+    public boolean open() throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return false;
+            }
+            int versionLength = buffer.getInt();
+            if (versionLength < 0 || versionLength > buffer.remaining()) {
+                return false;
+            }
+            byte[] versionBytes = new byte[versionLength];
+            buffer.get(versionBytes);
+            if (buffer.remaining() < 16) {
+                return false;
+            }
+            tableCount = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            payloadCrc = buffer.getLong();
+            if (payloadLength < 0 || payloadLength != buffer.remaining()) {
+                return false;
+            }
+            metadataVersion = new String(versionBytes, StandardCharsets.UTF_8);
+            payload = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * 校验并读取快照中的表元数据，必须先调用 open
+     * @return 表元数据，校验失败返回null
+     * @throws IOException 读文件失败
+     */
+    @SuppressWarnings("unchecked")
+    public List<MetaTable> readTables() throws IOException {
+        if (payload == null) {
+            return null;
+        }
+        ByteBuffer content = payload.slice();
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        if (crc.getValue() != payloadCrc) {
+            return null;
+        }
+        try (ObjectInputStream in = new SnapshotObjectInputStream(
+            new InflaterInputStream(new ByteBufferInputStream(content)))) {
+            return (List<MetaTable>) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InvalidObjectException("元数据快照内容错误：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 快照中只可能有元数据相关的类，其他的类一律拒绝
+     */
+    private static class SnapshotObjectInputStream extends ObjectInputStream {
+        SnapshotObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String className = desc.getName();
+            if (!className.startsWith("java.") && !className.startsWith("com.centit.")
+                && !className.startsWith("[")) {
+                throw new InvalidClassException(className, "元数据快照中不允许的类");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.centit.product.metadata.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.po.MetaTableAccessPlan;
+import com.centit.support.algorithm.StringBaseOpt;
+import com.centit.support.common.ObjectException;
+import com.centit.support.database.utils.DBType;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.database.utils.PersistenceException;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * 批量写入表数据，按非空字段分组，字段相同的行共用一个预编译语句，
+ * 每 batchSize 行调用一次 executeBatch。
+ * 每一行的结果单独记录，某个批次执行失败后不再执行后面的批次，
+ * 失败之前已经执行的行仍在当前事务中，是否提交由调用者决定。
+ */
+public class MetaObjectBatchWriter {
+
+    /**
+     * 一条语句中最多的参数个数，Oracle 的 in 最多1000个，SQL Server 最多2100个参数
+     */
+    static final int MAX_BATCH_PARAMS = 900;
+
+    private interface RowBinder {
+        void bind(PreparedStatement stmt, Map<String, Object> object) throws SQLException;
+    }
+
+    private final Connection conn;
+    private final MetaTable tableInfo;
+    private final MetaTableAccessPlan plan;
+    private final int batchSize;
+    /**
+     * 第一个执行失败的批次的错误信息
+     */
+    private String failure;
+
+    public MetaObjectBatchWriter(Connection conn, MetaTable tableInfo, int batchSize) {
+        this.conn = conn;
+        this.tableInfo = tableInfo;
+        this.plan = tableInfo.fetchAccessPlan();
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+    }
+
+    public static JSONObject makeErrorResult(int index, String message) {
+        JSONObject result = new JSONObject(4);
+        result.put("index", index);
+        result.put("success", false);
+        result.put("error", message);
+        return result;
+    }
+
+    private JSONObject makeSuccessResult(int index, Map<String, Object> object) {
+        String[] pkProperties = plan.getPkProperties();
+        JSONObject key = new JSONObject(pkProperties.length + 1);
+        for (String pk : pkProperties) {
+            key.put(pk, object.get(pk));
+        }
+        JSONObject result = new JSONObject(4);
+        result.put("index", index);
+        result.put("success", true);
+        result.put("key", key);
+        return result;
+    }
+
+    /**
+     * 非空字段相同的行分到一组，key 为字段在 plan.getColumns() 中的序号
+     */
+    private Map<BitSet, List<Integer>> groupByFields(List<Map<String, Object>> objects, JSONObject[] results,
+                                                     boolean needPk) {
+        String[] propertyNames = plan.getPropertyNames();
+        String[] pkProperties = plan.getPkProperties();
+        Map<BitSet, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < objects.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            Map<String, Object> object = objects.get(i);
+            if (needPk && !hasAllPk(object, pkProperties)) {
+                results[i] = makeErrorResult(i, "缺少主键");
+                continue;
+            }
+            BitSet fields = new BitSet(propertyNames.length);
+            for (int j = 0; j < propertyNames.length; j++) {
+                if (object.get(propertyNames[j]) != null) {
+                    fields.set(j);
+                }
+            }
+            if (fields.isEmpty()) {
+                results[i] = makeErrorResult(i, "没有可以保存的字段");
+                continue;
+            }
+            groups.computeIfAbsent(fields, (k) -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private static boolean hasAllPk(Map<String, Object> object, String[] pkProperties) {
+        if (pkProperties.length == 0) {
+            return false;
+        }
+        for (String pk : pkProperties) {
+            if (object.get(pk) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void setParameter(PreparedStatement stmt, int index, Object value) throws SQLException {
+        if (value instanceof Map || value instanceof Collection) {
+            stmt.setObject(index, JSON.toJSONString(value));
+        } else if (value instanceof java.util.Date && !(value instanceof Timestamp)
+            && !(value instanceof java.sql.Date) && !(value instanceof Time)) {
+            stmt.setTimestamp(index, new Timestamp(((java.util.Date) value).getTime()));
+        } else {
+            stmt.setObject(index, value);
+        }
+    }
+
+    private RowBinder fieldsBinder(BitSet fields) {
+        String[] propertyNames = plan.getPropertyNames();
+        return (stmt, object) -> {
+            int p = 1;
+            for (int j = fields.nextSetBit(0); j >= 0; j = fields.nextSetBit(j + 1)) {
+                setParameter(stmt, p++, object.get(propertyNames[j]));
+            }
+        };
+    }
+
+    private String columnList(BitSet fields, String prefix) {
+        MetaColumn[] columns = plan.getColumns();
+        StringBuilder sql = new StringBuilder();
+        for (int j = fields.nextSetBit(0); j >= 0; j = fields.nextSetBit(j + 1)) {
+            if (sql.length() > 0) {
+                sql.append(", ");
+            }
+            sql.append(prefix).append(columns[j].getColumnName());
+        }
+        return sql.toString();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sql = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        return sql.toString();
+    }
+
+    private String buildInsertSql(BitSet fields) {
+        return plan.fetchSqlTemplate("I|" + fields, (k) -> compileInsertSql(fields));
+    }
+
+    private String compileInsertSql(BitSet fields) {
+        return "insert into " + tableInfo.getTableName() + " (" + columnList(fields, "")
+            + ") values (" + placeholders(fields.cardinality()) + ")";
+    }
+
+    /**
+     * 逐批执行，返回成功的行数；批次失败后记录 failure，后面的行都标记为没有执行
+     */
+    private int executeBatches(String sql, RowBinder binder, List<Integer> rows,
+                               List<Map<String, Object>> objects, JSONObject[] results) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        if (failure != null) {
+            markNotExecuted(rows, 0, results);
+            return 0;
+        }
+        int count = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int start = 0; start < rows.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, rows.size());
+                for (int r = start; r < end; r++) {
+                    binder.bind(stmt, objects.get(rows.get(r)));
+                    stmt.addBatch();
+                }
+                try {
+                    stmt.executeBatch();
+                    for (int r = start; r < end; r++) {
+                        results[rows.get(r)] = makeSuccessResult(rows.get(r), objects.get(rows.get(r)));
+                    }
+                    count += end - start;
+                } catch (BatchUpdateException e) {
+                    count += markBatchFailure(e, objects, rows, start, end, results);
+                    failure = e.getMessage();
+                    markNotExecuted(rows, end, results);
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 批量插入，results 中已经有结果的行（比如生成主键失败）跳过
+     * @param objects 已经生成主键并转换过类型的数据
+     * @param results 每一行的结果，执行后所有元素都不为null
+     * @return 成功插入的行数
+     * @throws SQLException 准备语句失败
+     */
+    public int insertObjects(List<Map<String, Object>> objects, JSONObject[] results) throws SQLException {
+        int count = 0;
+        for (Map.Entry<BitSet, List<Integer>> group : groupByFields(objects, results, false).entrySet()) {
+            count += executeBatches(buildInsertSql(group.getKey()), fieldsBinder(group.getKey()),
+                group.getValue(), objects, results);
+        }
+        return count;
+    }
+
+    /**
+     * 按主键批量新增或者修改，值为null的字段不修改；
+     * MySql、PostgreSql、Oracle、DB2、SqlServer 使用数据库自己的 upsert 语句，
+     * 其他数据库先批量查询哪些主键已经存在，再分别批量插入和修改
+     * @param objects 已经转换过类型的数据，必须包含所有主键
+     * @param results 每一行的结果，执行后所有元素都不为null
+     * @param dbType 数据库类型
+     * @return 成功的行数
+     * @throws SQLException 准备语句或者查询失败
+     */
+    public int mergeObjects(List<Map<String, Object>> objects, JSONObject[] results, DBType dbType)
+        throws SQLException {
+        int count = 0;
+        for (Map.Entry<BitSet, List<Integer>> group : groupByFields(objects, results, true).entrySet()) {
+            BitSet fields = group.getKey();
+            String sql = dbType == null ? null :
+                plan.fetchSqlTemplate("M|" + dbType + "|" + fields, (k) -> buildMergeSql(fields, dbType));
+            if (sql != null) {
+                count += executeBatches(sql, fieldsBinder(fields), group.getValue(), objects, results);
+            } else {
+                count += probeAndMerge(fields, group.getValue(), objects, results);
+            }
+        }
+        return count;
+    }
+
+    private BitSet fetchPkFields() {
+        MetaColumn[] columns = plan.getColumns();
+        BitSet pkFields = new BitSet(columns.length);
+        for (int j = 0; j < columns.length; j++) {
+            if (columns[j].isPrimaryKey()) {
+                pkFields.set(j);
+            }
+        }
+        return pkFields;
+    }
+
+    /**
+     * @return 不支持的数据库返回null
+     */
+    private String buildMergeSql(BitSet fields, DBType dbType) {
+        if (dbType == null) {
+            return null;
+        }
+        MetaColumn[] columns = plan.getColumns();
+        BitSet pkFields = fetchPkFields();
+        BitSet updateFields = (BitSet) fields.clone();
+        updateFields.andNot(pkFields);
+        String tableName = tableInfo.getTableName();
+        StringBuilder sql = new StringBuilder();
+        switch (dbType) {
+            case MySql:
+                sql.append(buildInsertSql(fields)).append(" on duplicate key update ");
+                if (updateFields.isEmpty()) {
+                    String pkColumn = columns[pkFields.nextSetBit(0)].getColumnName();
+                    sql.append(pkColumn).append(" = ").append(pkColumn);
+                } else {
+                    appendAssignments(sql, updateFields, "", "values(", ")");
+                }
+                return sql.toString();
+            case PostgreSql:
+                sql.append(buildInsertSql(fields))
+                    .append(" on conflict (").append(columnList(pkFields, "")).append(") ");
+                if (updateFields.isEmpty()) {
+                    sql.append("do nothing");
+                } else {
+                    sql.append("do update set ");
+                    appendAssignments(sql, updateFields, "", "excluded.", "");
+                }
+                return sql.toString();
+            case Oracle:
+                sql.append("merge into ").append(tableName).append(" t using (select ");
+                int n = 0;
+                for (int j = fields.nextSetBit(0); j >= 0; j = fields.nextSetBit(j + 1)) {
+                    sql.append(n++ > 0 ? ", ? " : "? ").append(columns[j].getColumnName());
+                }
+                sql.append(" from dual) s");
+                appendMergeBody(sql, fields, pkFields, updateFields);
+                return sql.toString();
+            case SqlServer:
+                sql.append("merge into ").append(tableName).append(" as t using (values (")
+                    .append(placeholders(fields.cardinality())).append(")) as s (")
+                    .append(columnList(fields, "")).append(")");
+                appendMergeBody(sql, fields, pkFields, updateFields);
+                return sql.append(';').toString();
+            case DB2:
+                // DB2 的参数标记没有类型，必须用 cast 指定
+                sql.append("merge into ").append(tableName).append(" as t using (values (");
+                int m = 0;
+                for (int j = fields.nextSetBit(0); j >= 0; j = fields.nextSetBit(j + 1)) {
+                    sql.append(m++ > 0 ? ", " : "").append("cast(? as ").append(mapDb2Type(columns[j])).append(')');
+                }
+                sql.append(")) as s (").append(columnList(fields, "")).append(")");
+                appendMergeBody(sql, fields, pkFields, updateFields);
+                return sql.toString();
+            default:
+                return null;
+        }
+    }
+
+    private void appendAssignments(StringBuilder sql, BitSet updateFields,
+                                   String targetPrefix, String sourcePrefix, String sourceSuffix) {
+        MetaColumn[] columns = plan.getColumns();
+        int n = 0;
+        for (int j = updateFields.nextSetBit(0); j >= 0; j = updateFields.nextSetBit(j + 1)) {
+            String columnName = columns[j].getColumnName();
+            sql.append(n++ > 0 ? ", " : "").append(targetPrefix).append(columnName)
+                .append(" = ").append(sourcePrefix).append(columnName).append(sourceSuffix);
+        }
+    }
+
+    private void appendMergeBody(StringBuilder sql, BitSet fields, BitSet pkFields, BitSet updateFields) {
+        MetaColumn[] columns = plan.getColumns();
+        sql.append(" on (");
+        int n = 0;
+        for (int j = pkFields.nextSetBit(0); j >= 0; j = pkFields.nextSetBit(j + 1)) {
+            String columnName = columns[j].getColumnName();
+            sql.append(n++ > 0 ? " and " : "").append("t.").append(columnName).append(" = s.").append(columnName);
+        }
+        sql.append(")");
+        if (!updateFields.isEmpty()) {
+            sql.append(" when matched then update set ");
+            appendAssignments(sql, updateFields, "t.", "s.", "");
+        }
+        sql.append(" when not matched then insert (").append(columnList(fields, ""))
+            .append(") values (").append(columnList(fields, "s.")).append(")");
+    }
+
+    private static String mapDb2Type(MetaColumn column) {
+        String fieldType = column.getFieldType();
+        if (fieldType == null) {
+            return "varchar(4000)";
+        }
+        switch (fieldType) {
+            case FieldType.INTEGER:
+            case FieldType.LONG:
+                return "bigint";
+            case FieldType.MONEY:
+                int precision = column.getPrecision() > 0 ? column.getPrecision() : 31;
+                return "decimal(" + precision + "," + column.getScale() + ")";
+            case FieldType.FLOAT:
+            case FieldType.DOUBLE:
+                return "double";
+            case FieldType.DATE:
+            case FieldType.DATETIME:
+            case FieldType.TIMESTAMP:
+                return "timestamp";
+            case FieldType.BOOLEAN:
+                return "char(1)";
+            case FieldType.TEXT:
+                return "clob";
+            case FieldType.STRING:
+                return "varchar(" + (column.getColumnLength() > 0 ? column.getColumnLength() : 4000) + ")";
+            default:
+                return "varchar(4000)";
+        }
+    }
+
+    /**
+     * 不支持 upsert 的数据库：每批先用一条语句查询已经存在的主键，再分别批量插入和修改
+     */
+    private int probeAndMerge(BitSet fields, List<Integer> rows,
+                              List<Map<String, Object>> objects, JSONObject[] results) throws SQLException {
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        String[] pkProperties = plan.getPkProperties();
+        BitSet updateFields = (BitSet) fields.clone();
+        updateFields.andNot(fetchPkFields());
+        String insertSql = buildInsertSql(fields);
+        String updateSql = updateFields.isEmpty() ? null :
+            plan.fetchSqlTemplate("U|" + updateFields, (k) -> buildUpdateSql(updateFields));
+        RowBinder insertBinder = fieldsBinder(fields);
+        RowBinder updateBinder = updateSql == null ? null : updateBinder(updateFields);
+
+        int chunkSize = Math.max(1, Math.min(batchSize, MAX_BATCH_PARAMS / pkColumns.length));
+        int count = 0;
+        for (int start = 0; start < rows.size(); start += chunkSize) {
+            List<Integer> chunk = rows.subList(start, Math.min(start + chunkSize, rows.size()));
+            if (failure != null) {
+                markNotExecuted(chunk, 0, results);
+                continue;
+            }
+            Set<String> existKeys = queryExistKeys(chunk, objects);
+            List<Integer> insertRows = new ArrayList<>(chunk.size());
+            List<Integer> updateRows = new ArrayList<>(chunk.size());
+            for (Integer index : chunk) {
+                // 同一批中主键重复的行，后面的按修改处理
+                if (existKeys.add(makeKey(objects.get(index), pkProperties))) {
+                    insertRows.add(index);
+                } else {
+                    updateRows.add(index);
+                }
+            }
+            count += executeBatches(insertSql, insertBinder, insertRows, objects, results);
+            if (updateSql != null) {
+                count += executeBatches(updateSql, updateBinder, updateRows, objects, results);
+            } else {
+                for (Integer index : updateRows) {
+                    results[index] = makeSuccessResult(index, objects.get(index));
+                }
+                count += updateRows.size();
+            }
+        }
+        return count;
+    }
+
+    private String buildUpdateSql(BitSet updateFields) {
+        MetaColumn[] columns = plan.getColumns();
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        StringBuilder sql = new StringBuilder("update ").append(tableInfo.getTableName()).append(" set ");
+        int n = 0;
+        for (int j = updateFields.nextSetBit(0); j >= 0; j = updateFields.nextSetBit(j + 1)) {
+            sql.append(n++ > 0 ? ", " : "").append(columns[j].getColumnName()).append(" = ?");
+        }
+        sql.append(" where ");
+        for (int k = 0; k < pkColumns.length; k++) {
+            sql.append(k > 0 ? " and " : "").append(pkColumns[k].getColumnName()).append(" = ?");
+        }
+        return sql.toString();
+    }
+
+    private RowBinder updateBinder(BitSet updateFields) {
+        String[] propertyNames = plan.getPropertyNames();
+        String[] pkProperties = plan.getPkProperties();
+        return (stmt, object) -> {
+            int p = 1;
+            for (int j = updateFields.nextSetBit(0); j >= 0; j = updateFields.nextSetBit(j + 1)) {
+                setParameter(stmt, p++, object.get(propertyNames[j]));
+            }
+            for (String pk : pkProperties) {
+                setParameter(stmt, p++, object.get(pk));
+            }
+        };
+    }
+
+    private Set<String> queryExistKeys(List<Integer> chunk, List<Map<String, Object>> objects) throws SQLException {
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        String[] pkProperties = plan.getPkProperties();
+        StringBuilder sql = new StringBuilder("select ");
+        for (int k = 0; k < pkColumns.length; k++) {
+            sql.append(k > 0 ? ", " : "").append(pkColumns[k].getColumnName());
+        }
+        sql.append(" from ").append(tableInfo.getTableName()).append(" where ")
+            .append(buildKeyFilter(fetchColumnNames(pkColumns), chunk.size()));
+        Set<String> keys = new HashSet<>(chunk.size() * 2);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int p = 1;
+            for (Integer index : chunk) {
+                Map<String, Object> object = objects.get(index);
+                for (String pk : pkProperties) {
+                    setParameter(stmt, p++, object.get(pk));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                Object[] values = new Object[pkColumns.length];
+                while (rs.next()) {
+                    for (int k = 0; k < values.length; k++) {
+                        values[k] = rs.getObject(k + 1);
+                    }
+                    keys.add(makeKey(values));
+                }
+            }
+        }
+        return keys;
+    }
+
+    static String[] fetchColumnNames(MetaColumn[] columns) {
+        String[] names = new String[columns.length];
+        for (int k = 0; k < columns.length; k++) {
+            names[k] = columns[k].getColumnName();
+        }
+        return names;
+    }
+
+    /**
+     * 单字段用 in，多字段用 (a = ? and b = ?) or (...)，参数按行、按字段顺序排列
+     */
+    static String buildKeyFilter(String[] keyColumns, int rowCount) {
+        StringBuilder filter = new StringBuilder();
+        if (keyColumns.length == 1) {
+            filter.append(keyColumns[0]).append(" in (").append(placeholders(rowCount)).append(')');
+            return filter.toString();
+        }
+        for (int i = 0; i < rowCount; i++) {
+            filter.append(i > 0 ? " or (" : "(");
+            for (int k = 0; k < keyColumns.length; k++) {
+                filter.append(k > 0 ? " and " : "").append(keyColumns[k]).append(" = ?");
+            }
+            filter.append(')');
+        }
+        return filter.toString();
+    }
+
+    private static void bindKeys(PreparedStatement stmt, String[] keyProperties,
+                                 List<Map<String, Object>> keys) throws SQLException {
+        int p = 1;
+        for (Map<String, Object> key : keys) {
+            for (String prop : keyProperties) {
+                setParameter(stmt, p++, key.get(prop));
+            }
+        }
+    }
+
+    /**
+     * 按键值批量删除，每条语句最多 MAX_BATCH_PARAMS 个参数
+     * @param keyColumns 条件字段名
+     * @param keyProperties 和 keyColumns 对应的属性名
+     * @param keys 键值，不能有重复
+     * @return 删除的行数
+     * @throws SQLException 执行失败
+     */
+    public int deleteByKeys(String[] keyColumns, String[] keyProperties,
+                            List<Map<String, Object>> keys) throws SQLException {
+        int chunkSize = Math.max(1, MAX_BATCH_PARAMS / keyColumns.length);
+        int count = 0;
+        for (int start = 0; start < keys.size(); start += chunkSize) {
+            List<Map<String, Object>> chunk = keys.subList(start, Math.min(start + chunkSize, keys.size()));
+            String sql = "delete from " + tableInfo.getTableName()
+                + " where " + buildKeyFilter(keyColumns, chunk.size());
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                bindKeys(stmt, keyProperties, chunk);
+                count += stmt.executeUpdate();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按键值批量查询部分字段，返回的对象以属性名为key，值不做类型转换
+     */
+    public List<Map<String, Object>> queryByKeys(MetaColumn[] selectColumns, String[] keyColumns,
+                                                 String[] keyProperties, List<Map<String, Object>> keys)
+        throws SQLException {
+        String selectSql = String.join(", ", fetchColumnNames(selectColumns));
+        int chunkSize = Math.max(1, MAX_BATCH_PARAMS / keyColumns.length);
+        List<Map<String, Object>> objects = new ArrayList<>(keys.size());
+        for (int start = 0; start < keys.size(); start += chunkSize) {
+            List<Map<String, Object>> chunk = keys.subList(start, Math.min(start + chunkSize, keys.size()));
+            String sql = "select " + selectSql + " from " + tableInfo.getTableName()
+                + " where " + buildKeyFilter(keyColumns, chunk.size());
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                bindKeys(stmt, keyProperties, chunk);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Map<String, Object> object = new HashMap<>(selectColumns.length * 2);
+                        for (int k = 0; k < selectColumns.length; k++) {
+                            object.put(selectColumns[k].getPropertyName(), fetchValue(rs.getObject(k + 1)));
+                        }
+                        objects.add(object);
+                    }
+                }
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * 大字段在结果集关闭后不能再读取，查询时直接读出内容
+     */
+    private static Object fetchValue(Object value) throws SQLException {
+        if (value instanceof Clob) {
+            Clob clob = (Clob) value;
+            return clob.getSubString(1, (int) clob.length());
+        }
+        if (value instanceof Blob) {
+            Blob blob = (Blob) value;
+            return blob.getBytes(1, (int) blob.length());
+        }
+        return value;
+    }
+
+    /**
+     * 按差异保存子表：和数据库中外键相同的已有行按主键比较，只插入新增的行、只修改值有变化的字段、
+     * 删除提交中没有的行，没有变化的行不执行任何语句。修改按变化的字段分组后批量执行。
+     * @param objects 已经转换过类型的子表数据，必须包含所有主键
+     * @param ref 外键，key 为子表的属性名
+     * @return 提交的行数（submitted）以及插入（inserted）、修改（updated）、删除（deleted）、没有变化（unchanged）的行数
+     * @throws SQLException 查询或者执行失败
+     */
+    public JSONObject replaceObjectsAsTabulation(List<Map<String, Object>> objects, Map<String, Object> ref)
+        throws SQLException {
+        String[] propertyNames = plan.getPropertyNames();
+        MetaColumn[] columns = plan.getColumns();
+        String[] pkProperties = plan.getPkProperties();
+        String[] refProperties = ref.keySet().toArray(new String[0]);
+        String[] refColumns = new String[refProperties.length];
+        for (int k = 0; k < refProperties.length; k++) {
+            MetaColumn column = plan.findFieldByName(refProperties[k]);
+            if (column == null) {
+                throw new ObjectException(ref, PersistenceException.ORM_METADATA_EXCEPTION,
+                    "表 " + tableInfo.getTableName() + " 没有外键字段 " + refProperties[k] + "！");
+            }
+            refColumns[k] = column.getColumnName();
+        }
+        Map<String, Map<String, Object>> existObjects = new HashMap<>();
+        for (Map<String, Object> exist : queryByKeys(columns, refColumns, refProperties,
+            Collections.singletonList(ref))) {
+            existObjects.put(makeKey(exist, pkProperties), exist);
+        }
+
+        JSONObject[] results = new JSONObject[objects.size()];
+        List<Map<String, Object>> insertObjects = new ArrayList<>();
+        Map<BitSet, List<Integer>> updateGroups = new LinkedHashMap<>();
+        Set<String> submittedKeys = new HashSet<>(objects.size() * 2);
+        BitSet pkFields = fetchPkFields();
+        int unchanged = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            Map<String, Object> object = objects.get(i);
+            if (!hasAllPk(object, pkProperties)) {
+                throw new ObjectException(object, PersistenceException.DATABASE_OPERATE_EXCEPTION,
+                    "表 " + tableInfo.getTableName() + " 第 " + (i + 1) + " 行缺少主键！");
+            }
+            String key = makeKey(object, pkProperties);
+            if (!submittedKeys.add(key)) {
+                throw new ObjectException(object, PersistenceException.DATABASE_OPERATE_EXCEPTION,
+                    "表 " + tableInfo.getTableName() + " 第 " + (i + 1) + " 行主键重复！");
+            }
+            Map<String, Object> exist = existObjects.remove(key);
+            if (exist == null) {
+                insertObjects.add(object);
+                continue;
+            }
+            // 只比较提交了的字段，没有提交的字段保持原值
+            BitSet changedFields = new BitSet(propertyNames.length);
+            for (int j = 0; j < propertyNames.length; j++) {
+                if (!pkFields.get(j) && object.containsKey(propertyNames[j])
+                    && !sameValue(object.get(propertyNames[j]), exist.get(propertyNames[j]))) {
+                    changedFields.set(j);
+                }
+            }
+            if (changedFields.isEmpty()) {
+                unchanged++;
+            } else {
+                updateGroups.computeIfAbsent(changedFields, (k) -> new ArrayList<>()).add(i);
+            }
+        }
+
+        int deleted = existObjects.isEmpty() ? 0 : deleteByKeys(fetchColumnNames(plan.getPkColumns()),
+            pkProperties, new ArrayList<>(existObjects.values()));
+        int updated = 0;
+        for (Map.Entry<BitSet, List<Integer>> group : updateGroups.entrySet()) {
+            BitSet changedFields = group.getKey();
+            updated += executeBatches(plan.fetchSqlTemplate("U|" + changedFields, (k) -> buildUpdateSql(changedFields)),
+                updateBinder(changedFields), group.getValue(), objects, results);
+        }
+        JSONObject[] insertResults = new JSONObject[insertObjects.size()];
+        int inserted = insertObjects(insertObjects, insertResults);
+        // 子表和父对象在同一个事务中保存，任意一行失败都由调用者回滚
+        String error = failure != null ? failure : fetchFirstError(insertResults);
+        if (error != null) {
+            throw new ObjectException(ref, PersistenceException.DATABASE_OPERATE_EXCEPTION,
+                "保存表 " + tableInfo.getTableName() + " 失败：" + error);
+        }
+
+        JSONObject stat = new JSONObject(8);
+        stat.put("submitted", objects.size());
+        stat.put("inserted", inserted);
+        stat.put("updated", updated);
+        stat.put("deleted", deleted);
+        stat.put("unchanged", unchanged);
+        return stat;
+    }
+
+    private static String fetchFirstError(JSONObject[] results) {
+        for (JSONObject result : results) {
+            if (result != null && !result.getBooleanValue("success")) {
+                return result.getString("error");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 比较提交的值和数据库中的值，类型不同时按数值、时间或者字符串比较；不能确定相同时按有变化处理
+     */
+    private static boolean sameValue(Object value, Object dbValue) {
+        if (value == null || dbValue == null) {
+            return value == null && dbValue == null;
+        }
+        if (value instanceof Number || dbValue instanceof Number) {
+            try {
+                return new java.math.BigDecimal(StringBaseOpt.castObjectToString(value))
+                    .compareTo(new java.math.BigDecimal(StringBaseOpt.castObjectToString(dbValue))) == 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        if (value instanceof java.util.Date && dbValue instanceof java.util.Date) {
+            return ((java.util.Date) value).getTime() == ((java.util.Date) dbValue).getTime();
+        }
+        if (value instanceof byte[] || dbValue instanceof byte[]) {
+            return value instanceof byte[] && dbValue instanceof byte[]
+                && Arrays.equals((byte[]) value, (byte[]) dbValue);
+        }
+        if (value instanceof Map || value instanceof Collection) {
+            return JSON.toJSONString(value).equals(StringBaseOpt.castObjectToString(dbValue));
+        }
+        return StringBaseOpt.castObjectToString(value).equals(StringBaseOpt.castObjectToString(dbValue));
+    }
+
+    private static String makeKey(Map<String, Object> object, String[] pkProperties) {
+        Object[] values = new Object[pkProperties.length];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = object.get(pkProperties[k]);
+        }
+        return makeKey(values);
+    }
+
+    /**
+     * 数据库返回的主键类型可能和提交的不同（比如 BigDecimal 和 Long），统一转换为字符串比较
+     */
+    static String makeKey(Object[] values) {
+        StringBuilder key = new StringBuilder();
+        for (int k = 0; k < values.length; k++) {
+            if (k > 0) {
+                key.append('\u0001');
+            }
+            Object value = values[k];
+            if (value instanceof Number) {
+                value = new java.math.BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+            }
+            key.append(StringBaseOpt.castObjectToString(value));
+        }
+        return key.toString();
+    }
+
+    /**
+     * 驱动在批次失败后可能继续执行后面的语句（返回 EXECUTE_FAILED），也可能直接停止（返回的计数少于批次行数）
+     */
+    private int markBatchFailure(BatchUpdateException e, List<Map<String, Object>> objects,
+                                 List<Integer> rows, int start, int end, JSONObject[] results) {
+        int[] counts = e.getUpdateCounts();
+        int executed = counts == null ? 0 : counts.length;
+        int succeed = 0;
+        for (int r = start; r < end; r++) {
+            int index = rows.get(r);
+            int k = r - start;
+            if (k < executed && counts[k] != Statement.EXECUTE_FAILED) {
+                results[index] = makeSuccessResult(index, objects.get(index));
+                succeed++;
+            } else {
+                results[index] = makeErrorResult(index, e.getMessage());
+            }
+        }
+        return succeed;
+    }
+
+    private void markNotExecuted(List<Integer> rows, int from, JSONObject[] results) {
+        for (int r = from; r < rows.size(); r++) {
+            int index = rows.get(r);
+            results[index] = makeErrorResult(index, "前面的批次执行失败，没有执行：" + failure);
+        }
+    }
+}
@@ -3,14 +3,19 @@ package com.centit.product.metadata.service.impl;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.centit.framework.core.dao.DictionaryMapColumn;
 import com.centit.framework.core.dao.DictionaryMapUtils;
-import com.centit.product.metadata.dao.DatabaseInfoDao;
 import com.centit.product.metadata.po.DatabaseInfo;
 import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaRelDetail;
 import com.centit.product.metadata.po.MetaRelation;
 import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.po.MetaTableAccessPlan;
 import com.centit.product.metadata.service.MetaDataCache;
 import com.centit.product.metadata.service.MetaObjectService;
+import com.centit.product.metadata.vo.CountPolicy;
+import com.centit.product.metadata.vo.MetaPageDesc;
+import com.centit.product.metadata.vo.SeekPageResult;
 import com.centit.search.document.ObjectDocument;
 import com.centit.search.service.Impl.ESIndexer;
 import com.centit.support.algorithm.*;
@@ -25,19 +30,40 @@ import com.centit.support.database.utils.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.SQLException;
+import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class MetaObjectServiceImpl implements MetaObjectService {
-    //private Logger logger = LoggerFactory.getLogger(MetaObjectServiceImpl.class);
+    private static final int DEFAULT_SEEK_PAGE_SIZE = 20;
 
-    @Autowired
-    private DatabaseInfoDao databaseInfoDao;
+    /**
+     * 请求中指定总行数获取方式的参数
+     */
+    public static final String COUNT_POLICY_PARAM = "countPolicy";
+
+    /**
+     * count(*) over() 窗口函数返回的总行数字段
+     */
+    private static final String WINDOW_COUNT_COLUMN = "META_TOTAL_ROWS";
+
+    /**
+     * 分页、排序参数不影响总行数，计算缓存签名时忽略
+     */
+    private static final String[] COUNT_IGNORE_PARAMS = {"pageNo", "pageSize", "sort", "order", COUNT_POLICY_PARAM};
+
+    //private Logger logger = LoggerFactory.getLogger(MetaObjectServiceImpl.class);
 
     @Autowired
     private MetaDataCache metaDataCache;
@@ -45,124 +71,327 @@ public class MetaObjectServiceImpl implements MetaObjectService {
     @Autowired(required = false)
     private ESIndexer esObjectIndexer;
 
-    private static Map<String, Object> prepareObjectForSave(Map<String, Object> object, MetaTable metaTable){
-        for(MetaColumn col :  metaTable.getMdColumns()) {
-            Object fieldValue = object.get(col.getPropertyName());
-            if(fieldValue != null) {
-                switch (col.getFieldType()){
-                    case FieldType.DATE:
-                        /*object.put(col.getPropertyName(), DatetimeOpt.castObjectToSqlDate(fieldValue));
-                        break;*/
-                    case FieldType.DATETIME:
-                    case FieldType.TIMESTAMP:
-                        object.put(col.getPropertyName(), DatetimeOpt.castObjectToSqlTimestamp(fieldValue));
-                        break;
-                    case FieldType.INTEGER:
-                    case FieldType.LONG:
-                        object.put(col.getPropertyName(), NumberBaseOpt.castObjectToLong(fieldValue));
-                        break;
-                    case FieldType.MONEY:
-                        object.put(col.getPropertyName(), NumberBaseOpt.castObjectToBigDecimal(fieldValue));
-                        break;
-                    case FieldType.FLOAT:
-                    case FieldType.DOUBLE:
-                        object.put(col.getPropertyName(), NumberBaseOpt.castObjectToDouble(fieldValue));
-                        break;
-                    case FieldType.STRING:
-                    case FieldType.TEXT:
-                        object.put(col.getPropertyName(), StringBaseOpt.castObjectToString(fieldValue));
-                        break;
-                    case FieldType.BOOLEAN:
-                        object.put(col.getPropertyName(),
-                            BooleanBaseOpt.castObjectToBoolean(fieldValue,false)?
-                                BooleanBaseOpt.ONE_CHAR_TRUE: BooleanBaseOpt.ONE_CHAR_FALSE);
-                        break;
-                    default:
-                        break;
+    /**
+     * 并行查询关联数据，每个关联在单独的只读连接上查询，看不到当前事务中还没有提交的修改，
+     * 所以当前连接上已经有修改（本服务写过数据或者在 spring 事务中）时仍然在当前连接上依次查询
+     */
+    @Value("${metadata.object.parallel.enabled:false}")
+    private boolean parallelFetch;
+
+    @Value("${metadata.object.parallel.threads:16}")
+    private int parallelThreads;
+
+    /**
+     * 每个请求最多同时使用的连接数
+     */
+    @Value("${metadata.object.parallel.maxPerRequest:4}")
+    private int parallelPerRequest;
+
+    @Value("${metadata.object.parallel.timeoutMillis:10000}")
+    private long parallelTimeoutMillis;
+
+    private ExecutorService relationExecutor;
+
+    /**
+     * 本服务写过数据的连接，事务提交后连接归还连接池，下次取到的是新的连接对象
+     */
+    private final Set<Connection> writtenConnections =
+        Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+
+    /**
+     * 默认的总行数获取方式，请求中可以用 countPolicy 参数指定
+     */
+    @Value("${metadata.object.count.policy:EXACT}")
+    private String defaultCountPolicy;
+
+    /**
+     * 按表指定总行数获取方式，格式为 tableId:policy，多个用逗号分隔
+     */
+    @Value("${metadata.object.count.tablePolicies:}")
+    private String tableCountPolicies;
+
+    @Value("${metadata.object.count.cacheSeconds:60}")
+    private long countCacheSeconds;
+
+    @Value("${metadata.object.count.cacheMaxSize:10000}")
+    private int countCacheMaxSize;
+
+    /**
+     * 用 count(*) over() 在查询当前页的同时得到总行数的表，多个用逗号分隔，* 表示所有表；
+     * 只在 EXACT 计数并且数据库支持窗口函数时使用
+     */
+    @Value("${metadata.object.count.windowTables:}")
+    private String windowCountTableIds;
 
+    private Set<String> windowCountTables = Collections.emptySet();
+    private final ConcurrentHashMap<String, Boolean> windowCountSupports = new ConcurrentHashMap<>();
+
+    private CountPolicy countPolicy = CountPolicy.EXACT;
+    private Map<String, CountPolicy> tableCountPolicyMap = Collections.emptyMap();
+    private RowCountCache rowCountCache = new RowCountCache(60, 10000);
+
+    /**
+     * 批量写入时每次 executeBatch 的行数
+     */
+    @Value("${metadata.object.batchSize:500}")
+    private int batchSize;
+
+    /**
+     * 导出数据时每批查询的行数
+     */
+    @Value("${metadata.object.export.fetchSize:1000}")
+    private int exportFetchSize;
+
+    /**
+     * 每个物理连接缓存的预编译语句数量，0 表示不缓存
+     */
+    @Value("${metadata.object.statementCache.size:64}")
+    private int statementCacheSize;
+
+    /**
+     * 按数据库指定缓存的语句数量，格式为 databaseCode:size，多个用逗号分隔；
+     * 数据库扩展属性中的 statementCacheSize 优先
+     */
+    @Value("${metadata.object.statementCache.databases:}")
+    private String databaseStatementCacheSizes;
+
+    /**
+     * 使用 hi/lo 方式按块分配的序列，格式为 sequenceName:blockSize，多个用逗号分隔；
+     * 步长大于1的序列不需要配置，自动按步长分块
+     */
+    @Value("${metadata.object.sequence.hiloSizes:}")
+    private String sequenceHiloSizes;
+
+    private SequenceAllocator sequenceAllocator = new SequenceAllocator(null);
+
+    /**
+     * 按差异保存子表的累计行数，touched 和 submitted 的比例反映了差异保存节省的写入
+     */
+    private final LongAdder tabulationSubmitted = new LongAdder();
+    private final LongAdder tabulationInserted = new LongAdder();
+    private final LongAdder tabulationUpdated = new LongAdder();
+    private final LongAdder tabulationDeleted = new LongAdder();
+
+    private Map<String, Integer> statementCacheSizeMap = Collections.emptyMap();
+    private final ConcurrentHashMap<String, PreparedStatementCache> statementCaches = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        countPolicy = CountPolicy.valueOf(defaultCountPolicy, CountPolicy.EXACT);
+        if (StringUtils.isNotBlank(tableCountPolicies)) {
+            Map<String, CountPolicy> policies = new HashMap<>(16);
+            for (String item : tableCountPolicies.split(",")) {
+                int n = item.indexOf(':');
+                if (n > 0) {
+                    policies.put(item.substring(0, n).trim(),
+                        CountPolicy.valueOf(item.substring(n + 1), countPolicy));
+                }
+            }
+            tableCountPolicyMap = policies;
+        }
+        rowCountCache = new RowCountCache(countCacheSeconds, countCacheMaxSize);
+        if (StringUtils.isNotBlank(windowCountTableIds)) {
+            Set<String> tables = new HashSet<>(16);
+            for (String tableId : windowCountTableIds.split(",")) {
+                if (StringUtils.isNotBlank(tableId)) {
+                    tables.add(tableId.trim());
+                }
+            }
+            windowCountTables = tables;
+        }
+        if (StringUtils.isNotBlank(databaseStatementCacheSizes)) {
+            Map<String, Integer> sizes = new HashMap<>(16);
+            for (String item : databaseStatementCacheSizes.split(",")) {
+                int n = item.indexOf(':');
+                Integer size = n > 0 ? NumberBaseOpt.castObjectToInteger(item.substring(n + 1).trim()) : null;
+                if (size != null) {
+                    sizes.put(item.substring(0, n).trim(), size);
+                }
+            }
+            statementCacheSizeMap = sizes;
+        }
+        if (StringUtils.isNotBlank(sequenceHiloSizes)) {
+            Map<String, Integer> sizes = new HashMap<>(16);
+            for (String item : sequenceHiloSizes.split(",")) {
+                int n = item.indexOf(':');
+                Integer size = n > 0 ? NumberBaseOpt.castObjectToInteger(item.substring(n + 1).trim()) : null;
+                if (size != null) {
+                    sizes.put(item.substring(0, n).trim().toUpperCase(), size);
                 }
             }
+            sequenceAllocator = new SequenceAllocator(sizes);
+        }
+        if (parallelFetch) {
+            // 线程池满时拒绝提交，请求在自己的连接上串行查询，不会在调用线程中再占用一个连接
+            relationExecutor = new ThreadPoolExecutor(parallelThreads, parallelThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(parallelThreads * 16),
+                (runnable) -> {
+                    Thread thread = new Thread(runnable, "metadata-relation-fetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (relationExecutor != null) {
+            relationExecutor.shutdownNow();
+        }
+        for (PreparedStatementCache statementCache : statementCaches.values()) {
+            statementCache.clear();
         }
-        return object;
     }
 
-    private static void makeObjectValueByGenerator(Map<String, Object> object, Map<String, Object> extParams,
-                                                   MetaTable metaTable, JsonObjectDao sqlDialect,
-                                                   long pkOrder, boolean isGetObject)
+    /**
+     * 获取数据库对应的预编译语句缓存，每次获取时按数据库当前的配置调整缓存大小
+     */
+    private PreparedStatementCache fetchStatementCache(String databaseCode) {
+        Integer size = null;
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(databaseCode);
+        if (databaseInfo != null && databaseInfo.getExtProps() != null) {
+            size = NumberBaseOpt.castObjectToInteger(databaseInfo.getExtProps().get("statementCacheSize"));
+        }
+        if (size == null) {
+            size = statementCacheSizeMap.getOrDefault(databaseCode, statementCacheSize);
+        }
+        final int maxSize = size;
+        PreparedStatementCache statementCache = statementCaches.computeIfAbsent(databaseCode,
+            (code) -> new PreparedStatementCache(maxSize));
+        if (statementCache.getMaxSize() != maxSize) {
+            statementCache.setMaxSize(maxSize);
+        }
+        return statementCache;
+    }
+
+    /**
+     * 查询使用的连接，通过它预编译的语句（包括 GeneralJsonObjectDao 中的查询）使用语句缓存
+     */
+    private Connection cachedConnection(Connection conn, String databaseCode) {
+        return fetchStatementCache(databaseCode).wrap(conn);
+    }
+
+    private MetaObjectBatchWriter createBatchWriter(Connection conn, MetaTable tableInfo) {
+        return new MetaObjectBatchWriter(cachedConnection(conn, tableInfo.getDatabaseCode()),
+            tableInfo, batchSize);
+    }
+
+    private void recordTabulation(JSONObject stat) {
+        tabulationSubmitted.add(stat.getIntValue("submitted"));
+        tabulationInserted.add(stat.getIntValue("inserted"));
+        tabulationUpdated.add(stat.getIntValue("updated"));
+        tabulationDeleted.add(stat.getIntValue("deleted"));
+    }
+
+    @Override
+    public Map<String, Object> getTabulationStatistics() {
+        long inserted = tabulationInserted.sum();
+        long updated = tabulationUpdated.sum();
+        long deleted = tabulationDeleted.sum();
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("submitted", tabulationSubmitted.sum());
+        stats.put("touched", inserted + updated + deleted);
+        stats.put("inserted", inserted);
+        stats.put("updated", updated);
+        stats.put("deleted", deleted);
+        return stats;
+    }
+
+    @Override
+    public Map<String, Object> getStatementCacheStatistics() {
+        Map<String, Object> stats = new TreeMap<>();
+        for (Map.Entry<String, PreparedStatementCache> entry : statementCaches.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 获取表的元数据，表不存在时抛出异常，而不是返回null
+     */
+    private MetaTable fetchTableInfo(String tableId) {
+        MetaTable tableInfo = metaDataCache.getTableInfoAll(tableId);
+        if (tableInfo == null) {
+            throw new ObjectException(tableId, PersistenceException.ORM_METADATA_EXCEPTION,
+                "表或者视图 " + tableId + " 的元数据不存在！");
+        }
+        return tableInfo;
+    }
+
+    private static Map<String, Object> prepareObjectForSave(Map<String, Object> object, MetaTable metaTable){
+        return metaTable.fetchAccessPlan().convertObjectForSave(object);
+    }
+
+    /**
+     * 一个批次的 SUB_ORDER 分配器，查询最大值时使用数据库对应的加锁语句，需要时锁定父表的行
+     */
+    private SubOrderAllocator createSubOrderAllocator(MetaTable metaTable) {
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(metaTable.getDatabaseCode());
+        return new SubOrderAllocator(databaseInfo == null ? null : databaseInfo.getDBType(), metaDataCache);
+    }
+
+    private void makeObjectValueByGenerator(Map<String, Object> object, Map<String, Object> extParams,
+                                            MetaTable metaTable, JsonObjectDao sqlDialect,
+                                            SubOrderAllocator subOrders, boolean isGetObject)
         throws SQLException, IOException {
 
-        for(MetaColumn field : metaTable.getMdColumns()) {
-            if (StringUtils.equalsAny(field.getAutoCreateRule(), "C", "U", "S", "F","O")) {
-                //只有为空时才创建
-                if (object.get(field.getPropertyName()) == null) {
-                    switch (field.getAutoCreateRule()) {
-                        case "U":
-                            object.put(field.getPropertyName(), UuidOpt.getUuidAsString32());
-                            break;
-                        case "S":
-                            //GeneratorTime.READ 读取数据时不能用 SEQUENCE 生成值
-                            if (sqlDialect != null) {
-                                object.put(field.getPropertyName(),
-                                    sqlDialect.getSequenceNextValue(field.getAutoCreateParam()));
-                            }
-                            break;
-                        case "C":
-                            object.put(field.getPropertyName(), field.getAutoCreateParam());
-                            break;
-                        case "F":
-                            if(extParams != null){
-                                Map<String, Object> objectMap = new HashMap<>(extParams.size() + object.size() + 2);
-                                objectMap.putAll(extParams);
-                                objectMap.putAll(object);
-                                object.put(field.getPropertyName(),
-                                    VariableFormula.calculate(field.getAutoCreateParam(),objectMap));
-                            } else {
-                                object.put(field.getPropertyName(),
-                                    VariableFormula.calculate(field.getAutoCreateParam(), object));
-                            }
-                            break;
-                        case "O":
-                            if (isGetObject) {
-                                break;
-                            }
-                            int pkCount = metaTable.countPkColumn();
-                            if(pkCount < 2 || !field.isPrimaryKey()){
-                                throw new ObjectException(PersistenceException.ORM_METADATA_EXCEPTION,
-                                    "主键生成规则SUB_ORDER必须用于复合主键表中，并且只能用于整型字段！");
-                            }
-                            StringBuilder sqlBuilder = new StringBuilder("select max(" );
-                            sqlBuilder.append(field.getColumnName())
-                                .append(" ) as maxOrder from ")
-                                .append(metaTable.getTableName())
-                                .append(" where ");
-                            int pki = 0;
-                            Object[] pkValues = new Object[pkCount-1];
-                            for(MetaColumn col : metaTable.getColumns()){
-                                if(col.isPrimaryKey() &&
-                                    ! StringUtils.equals(col.getPropertyName(), field.getPropertyName())){
-                                    if(pki>0){
-                                        sqlBuilder.append(" and ");
-                                    }
-                                    sqlBuilder.append(col.getColumnName()).append(" = ?");
-                                    pkValues[pki] = object.get(col.getPropertyName());
-                                    pki++;
-                                }
-                            }
-                            Long pkSubOrder = NumberBaseOpt.castObjectToLong(
-                                DatabaseAccess.fetchScalarObject(
-                                    sqlDialect.findObjectsBySql(sqlBuilder.toString(), pkValues)) );
-                            object.put(field.getPropertyName(), pkSubOrder == null ? pkOrder : pkSubOrder + pkOrder);
-                            break;
-                        default:
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        MetaColumn[] generatorColumns = plan.getGeneratorColumns();
+        String[] generatorProperties = plan.getGeneratorProperties();
+        for(int i = 0; i < generatorColumns.length; i++) {
+            MetaColumn field = generatorColumns[i];
+            String propertyName = generatorProperties[i];
+            //只有为空时才创建
+            if (object.get(propertyName) == null) {
+                switch (field.getAutoCreateRule()) {
+                    case "U":
+                        object.put(propertyName, UuidOpt.getUuidAsString32());
+                        break;
+                    case "S":
+                        //GeneratorTime.READ 读取数据时不能用 SEQUENCE 生成值
+                        if (sqlDialect != null) {
+                            DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(metaTable.getDatabaseCode());
+                            object.put(propertyName, sequenceAllocator.nextValue(metaTable.getDatabaseCode(),
+                                field.getAutoCreateParam(), sqlDialect,
+                                databaseInfo == null ? null : databaseInfo.getDBType()));
+                        }
+                        break;
+                    case "C":
+                        object.put(propertyName, field.getAutoCreateParam());
+                        break;
+                    case "F":
+                        if(extParams != null){
+                            Map<String, Object> objectMap = new HashMap<>(extParams.size() + object.size() + 2);
+                            objectMap.putAll(extParams);
+                            objectMap.putAll(object);
+                            object.put(propertyName,
+                                VariableFormula.calculate(field.getAutoCreateParam(),objectMap));
+                        } else {
+                            object.put(propertyName,
+                                VariableFormula.calculate(field.getAutoCreateParam(), object));
+                        }
+                        break;
+                    case "O":
+                        if (isGetObject) {
                             break;
-                    }
+                        }
+                        object.put(propertyName, (subOrders == null ? createSubOrderAllocator(metaTable) : subOrders)
+                            .nextValue(metaTable, field, propertyName, object, sqlDialect));
+                        break;
+                    default:
+                        break;
                 }
             }
         }
     }
 
-    private DatabaseInfo fetchDatabaseInfo(String databaseCode){
-        return databaseInfoDao.getDatabaseInfoById(databaseCode);
+    private DataSourceDescription fetchDataSource(String databaseCode){
+        DataSourceDescription dataSource = metaDataCache.getDataSource(databaseCode);
+        if (dataSource == null) {
+            throw new ObjectException(databaseCode, PersistenceException.ORM_METADATA_EXCEPTION,
+                "数据库 " + databaseCode + " 不存在！");
+        }
+        return dataSource;
     }
 
     private Map<String, Object> innerGetObjectById(final Connection conn, final MetaTable tableInfo,final Map<String, Object> pk)
@@ -205,8 +434,8 @@ public class MetaObjectServiceImpl implements MetaObjectService {
         String querySql = "select " + q.getLeft() +
               " from " +tableInfo.getTableName() +
               " where " + filter;
-        JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(conn,
-            querySql, pk, q.getRight());
+        JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(
+            cachedConnection(conn, tableInfo.getDatabaseCode()), querySql, pk, q.getRight());
         if(objs!=null && objs.size() == 1){
             return (JSONObject)objs.get(0);
         }
@@ -215,91 +444,406 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public Map<String, Object> getObjectById(String tableId, Map<String, Object> pk) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             return innerGetObjectById(conn, tableInfo, pk);
         } catch (SQLException | IOException e) {
             throw new ObjectException(pk, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
         }
     }
 
-    private void fetchObjectParent(Connection conn, Map<String, Object> mainObj,
-                                     MetaRelation md) throws SQLException, IOException {
-        MetaTable parentTableInfo = metaDataCache.getTableInfo(md.getParentTableId());
+    /**
+     * 表数据被修改，总行数缓存立即失效，本事务中后面的查询不会用到旧的总行数；
+     * 在 spring 事务中提交后再失效一次，丢弃其他线程在提交前查询并缓存的旧总行数，
+     * 不在 spring 事务中时这样的旧总行数最多保留 countCacheSeconds
+     */
+    private void invalidateRowCounts(String tableId) {
+        rowCountCache.invalidateTable(tableId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    rowCountCache.invalidateTable(tableId);
+                }
+            });
+        }
+    }
+
+    /**
+     * 获取用于写入的连接，并记录这个连接上有未提交的修改
+     */
+    private Connection fetchWriteConnect(DataSourceDescription dataSource) throws SQLException {
+        Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
+        if (relationExecutor != null) {
+            writtenConnections.add(conn);
+        }
+        return conn;
+    }
+
+    /**
+     * 当前连接上可能有未提交的修改时，不能在其他连接上查询
+     */
+    private boolean hasUncommittedWrites(Connection conn) throws SQLException {
+        if (conn.getAutoCommit()) {
+            return false;
+        }
+        return writtenConnections.contains(conn) || TransactionSynchronizationManager.isActualTransactionActive();
+    }
+
+    /**
+     * 一个关联关系的查询，并行查询时在单独的连接上执行，不能修改主对象
+     */
+    private interface RelationQuery {
+        Object query(Connection conn) throws SQLException, IOException;
+    }
+
+    /**
+     * 执行一组互相独立的关联查询，返回的结果和查询一一对应；
+     * 开启并行查询时每个请求最多同时使用 parallelPerRequest 个连接池中的只读连接，
+     * 超过 parallelTimeoutMillis 没有完成的抛出异常，并中止这些连接上正在执行的语句
+     */
+    private List<Object> runRelationQueries(Connection conn, DataSourceDescription dataSource,
+                                            List<RelationQuery> queries) throws SQLException, IOException {
+        int queryCount = queries.size();
+        if (relationExecutor == null || queryCount < 2 || hasUncommittedWrites(conn)) {
+            return runRelationQueriesSerially(conn, queries);
+        }
+        Object[] results = new Object[queryCount];
+        AtomicInteger nextQuery = new AtomicInteger(0);
+        long deadline = System.currentTimeMillis() + parallelTimeoutMillis;
+        int workerCount = Math.min(parallelPerRequest, queryCount);
+        List<Future<?>> futures = new ArrayList<>(workerCount);
+        List<Connection> readConns = new CopyOnWriteArrayList<>();
+        try {
+            // 每个工作线程使用一个连接，依次领取还没有执行的查询
+            for (int w = 0; w < workerCount; w++) {
+                Future<?> future;
+                try {
+                    future = relationExecutor.submit(() -> {
+                        try (Connection readConn = DbcpConnectPools.getDbcpConnect(dataSource)) {
+                            readConns.add(readConn);
+                            int i;
+                            while ((i = nextQuery.getAndIncrement()) < queryCount
+                                && !Thread.currentThread().isInterrupted()) {
+                                results[i] = queries.get(i).query(readConn);
+                            }
+                        }
+                        return null;
+                    });
+                } catch (RejectedExecutionException e) {
+                    // 线程池已满：已经提交的工作线程会领取剩下的查询，一个都没有提交时在当前连接上串行查询
+                    break;
+                }
+                futures.add(future);
+            }
+            if (futures.isEmpty()) {
+                return runRelationQueriesSerially(conn, queries);
+            }
+            for (Future<?> future : futures) {
+                future.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            abortConnections(readConns);
+            throw new ObjectException(PersistenceException.DATABASE_OPERATE_EXCEPTION,
+                "查询关联数据超时（" + parallelTimeoutMillis + "ms）！");
+        } catch (InterruptedException e) {
+            abortConnections(readConns);
+            Thread.currentThread().interrupt();
+            throw new ObjectException(PersistenceException.DATABASE_OPERATE_EXCEPTION, "查询关联数据被中断！");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ObjectException(PersistenceException.DATABASE_OPERATE_EXCEPTION, cause.getMessage());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private static List<Object> runRelationQueriesSerially(Connection conn, List<RelationQuery> queries)
+        throws SQLException, IOException {
+        List<Object> results = new ArrayList<>(queries.size());
+        for (RelationQuery query : queries) {
+            results.add(query.query(conn));
+        }
+        return results;
+    }
+
+    /**
+     * 中断线程不能停止正在执行的 JDBC 语句，中止连接让驱动取消语句，连接池会丢弃这些连接
+     */
+    private static void abortConnections(List<Connection> conns) {
+        for (Connection readConn : conns) {
+            try {
+                readConn.abort(Runnable::run);
+            } catch (SQLException | RuntimeException e) {
+                // 中止失败时等语句自己结束，连接在工作线程中关闭
+            }
+        }
+    }
+
+    private RelationQuery buildParentQuery(Map<String, Object> mainObj, MetaRelation md) {
+        MetaTable parentTableInfo = fetchTableInfo(md.getParentTableId());
         Map<String, Object> ref = md.fetchParentPk(mainObj);
         // 检查是否是和父表的主键关联
-        if (ref != null && GeneralJsonObjectDao.checkHasAllPkColumns(parentTableInfo, ref)) {
-            JSONObject ja = GeneralJsonObjectDao.createJsonObjectDao(conn, parentTableInfo)
-                .getObjectById(ref);
-            mainObj.put(md.getRelationName(),
-                DictionaryMapUtils.mapJsonObject(ja,
-                    parentTableInfo.fetchDictionaryMapColumns(databaseInfoDao)));
+        if (ref == null || !GeneralJsonObjectDao.checkHasAllPkColumns(parentTableInfo, ref)) {
+            return null;
+        }
+        return (conn) -> DictionaryMapUtils.mapJsonObject(
+            GeneralJsonObjectDao.createJsonObjectDao(conn, parentTableInfo).getObjectById(ref),
+            parentTableInfo.fetchDictionaryMapColumns(metaDataCache));
+    }
+
+    private RelationQuery buildRefrenceQuery(Map<String, Object> mainObj, MetaRelation md) {
+        MetaTable subTableInfo = fetchTableInfo(md.getChildTableId());
+        Map<String, Object> ref = md.fetchChildFk(mainObj);
+        if (ref == null) {
+            return null;
         }
+        return (conn) -> DictionaryMapUtils.mapJsonArray(
+            GeneralJsonObjectDao.createJsonObjectDao(conn, subTableInfo).listObjectsByProperties(ref),
+            subTableInfo.fetchDictionaryMapColumns(metaDataCache));
     }
 
-    private void fetchObjectParents(Connection conn, Map<String, Object> mainObj,
-                                      MetaTable tableInfo) throws SQLException, IOException {
+    /**
+     * 查询主对象的父对象和指定名称的子对象
+     * @param parents 父对象的关联名称，null 表示所有的父对象
+     * @param children 子对象的关联名称，null 表示不查询子对象
+     */
+    private void fetchObjectRelations(Connection conn, DataSourceDescription dataSource, Map<String, Object> mainObj,
+                                      MetaTable tableInfo, String[] parents, String[] children)
+        throws SQLException, IOException {
+        List<String> relationNames = new ArrayList<>();
+        List<RelationQuery> queries = new ArrayList<>();
         List<MetaRelation> mds = tableInfo.getParents();
-        if(mds!=null) {
+        if (mds != null) {
+            for (MetaRelation md : mds) {
+                if (md.getRelationDetails() != null
+                    && (parents == null || StringUtils.equalsAny(md.getReferenceName(), parents))) {
+                    RelationQuery query = buildParentQuery(mainObj, md);
+                    if (query != null) {
+                        relationNames.add(md.getRelationName());
+                        queries.add(query);
+                    }
+                }
+            }
+        }
+        mds = tableInfo.getMdRelations();
+        if (mds != null && children != null) {
             for (MetaRelation md : mds) {
-                if (md.getRelationDetails()!=null) {
-                    fetchObjectParent(conn, mainObj, md);
+                if (StringUtils.equalsAny(md.getReferenceName(), children) && md.getRelationDetails() != null) {
+                    RelationQuery query = buildRefrenceQuery(mainObj, md);
+                    if (query != null) {
+                        relationNames.add(md.getRelationName());
+                        queries.add(query);
+                    }
                 }
             }
         }
+        List<Object> results = runRelationQueries(conn, dataSource, queries);
+        for (int i = 0; i < relationNames.size(); i++) {
+            mainObj.put(relationNames.get(i), results.get(i));
+        }
     }
 
-    private void fetchObjectRefrence(Connection conn, Map<String, Object> mainObj,
-                                      MetaRelation md) throws SQLException, IOException {
-        MetaTable subTableInfo = metaDataCache.getTableInfoWithRelations(md.getChildTableId());
-        Map<String, Object> ref = md.fetchChildFk(mainObj);
-        if (ref != null) {
-            JSONArray ja = DictionaryMapUtils.mapJsonArray(
-                GeneralJsonObjectDao.createJsonObjectDao(conn, subTableInfo)
-                .listObjectsByProperties(ref), subTableInfo.fetchDictionaryMapColumns(databaseInfoDao));
-            mainObj.put(md.getRelationName(), ja);
+    /**
+     * 按层加载子表，每一层每个关联关系只查询一次（外键数量多时按 MAX_BATCH_PARAMS 分批），
+     * 查询次数只和层数、关联关系数有关，和子表记录数无关；同一层的关联关系可以并行查询
+     */
+    private void fetchObjectRefrences(Connection conn, DataSourceDescription dataSource, Map<String, Object> mainObj,
+                                      MetaTable tableInfo, int withChildrenDeep) throws SQLException, IOException {
+        List<Pair<MetaTable, List<Map<String, Object>>>> level = new ArrayList<>(1);
+        level.add(Pair.of(tableInfo, Collections.singletonList(mainObj)));
+        for (int deep = withChildrenDeep; deep > 0 && !level.isEmpty(); deep--) {
+            List<RefrenceBatch> batches = new ArrayList<>();
+            List<RelationQuery> queries = new ArrayList<>();
+            for (Pair<MetaTable, List<Map<String, Object>>> group : level) {
+                List<MetaRelation> mds = group.getLeft().getMdRelations();
+                if (mds == null) {
+                    continue;
+                }
+                for (MetaRelation md : mds) {
+                    RefrenceBatch batch = prepareRefrenceBatch(group.getRight(), md,
+                        fetchTableInfo(md.getChildTableId()));
+                    if (batch != null) {
+                        batches.add(batch);
+                        queries.add((c) -> queryRefrenceBatch(c, batch));
+                    }
+                }
+            }
+            List<Object> results = runRelationQueries(conn, dataSource, queries);
+            List<Pair<MetaTable, List<Map<String, Object>>>> nextLevel = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                List<Map<String, Object>> children = attachRefrenceBatch(batches.get(i), (JSONArray) results.get(i));
+                if (deep > 1 && !children.isEmpty()) {
+                    nextLevel.add(Pair.of(batches.get(i).subTableInfo, children));
+                }
+            }
+            level = nextLevel;
         }
     }
 
-    private void fetchObjectRefrences(Connection conn, Map<String, Object> mainObj,
-                                      MetaTable tableInfo, int withChildrenDeep) throws SQLException, IOException {
-        List<MetaRelation> mds = tableInfo.getMdRelations();
-        if(mds!=null) {
-            for (MetaRelation md : mds) {
-                MetaTable subTableInfo = metaDataCache.getTableInfoWithRelations(md.getChildTableId());
-                Map<String, Object> ref = md.fetchChildFk(mainObj);
-                if(ref!=null) {
-                    JSONArray ja = GeneralJsonObjectDao.createJsonObjectDao(conn, subTableInfo)
-                        .listObjectsByProperties(ref);
-                    ja=DictionaryMapUtils.mapJsonArray(ja, subTableInfo.fetchDictionaryMapColumns(databaseInfoDao));
-                    if (withChildrenDeep > 1 && ja != null) {
-                        for (Object subObject : ja) {
-                            if (subObject instanceof Map) {
-                                fetchObjectRefrences(conn, (Map<String, Object>) subObject,
-                                    subTableInfo, withChildrenDeep - 1);
-                            }
-                        }
+    /**
+     * 一组父对象在一个关联关系上的子对象批量查询
+     */
+    private static class RefrenceBatch {
+        MetaRelation relation;
+        MetaTable subTableInfo;
+        String[] childProps;
+        // 外键值相同的父对象共用一次查询
+        Map<String, List<Map<String, Object>>> parentsByFk;
+        List<Map<String, Object>> refs;
+    }
+
+    private static RefrenceBatch prepareRefrenceBatch(List<Map<String, Object>> parentObjs,
+                                                      MetaRelation md, MetaTable subTableInfo) {
+        List<MetaRelDetail> details = md.getRelationDetails();
+        if (details == null || details.isEmpty()) {
+            return null;
+        }
+        int detailCount = details.size();
+        String[] childProps = new String[detailCount];
+        for (int i = 0; i < detailCount; i++) {
+            childProps[i] = FieldType.mapPropName(details.get(i).getChildColumnCode());
+        }
+        Map<String, List<Map<String, Object>>> parentsByFk = new LinkedHashMap<>(parentObjs.size() * 4 / 3 + 1);
+        Map<String, Map<String, Object>> fkValues = new HashMap<>(parentObjs.size() * 4 / 3 + 1);
+        for (Map<String, Object> parentObj : parentObjs) {
+            Map<String, Object> ref = md.fetchChildFk(parentObj);
+            if (ref == null) {
+                continue;
+            }
+            String fkKey = makeForeignKey(ref, childProps);
+            parentsByFk.computeIfAbsent(fkKey, (k) -> new ArrayList<>(1)).add(parentObj);
+            fkValues.putIfAbsent(fkKey, ref);
+            parentObj.put(md.getRelationName(), new JSONArray());
+        }
+        if (parentsByFk.isEmpty()) {
+            return null;
+        }
+        RefrenceBatch batch = new RefrenceBatch();
+        batch.relation = md;
+        batch.subTableInfo = subTableInfo;
+        batch.childProps = childProps;
+        batch.parentsByFk = parentsByFk;
+        batch.refs = new ArrayList<>(fkValues.values());
+        return batch;
+    }
+
+    /**
+     * 查询一个批次的所有子对象，不修改父对象
+     */
+    private JSONArray queryRefrenceBatch(Connection conn, RefrenceBatch batch) throws SQLException, IOException {
+        List<MetaRelDetail> details = batch.relation.getRelationDetails();
+        Pair<String, TableField[]> q = GeneralJsonObjectDao.buildFieldSqlWithFields(batch.subTableInfo, null, true);
+        JSONArray rows = new JSONArray();
+        int chunkSize = Math.max(1, MetaObjectBatchWriter.MAX_BATCH_PARAMS / details.size());
+        for (int start = 0; start < batch.refs.size(); start += chunkSize) {
+            List<Map<String, Object>> refs = batch.refs.subList(start, Math.min(start + chunkSize, batch.refs.size()));
+            Map<String, Object> params = new HashMap<>(refs.size() * details.size() * 4 / 3 + 1);
+            String filter = buildForeignKeyFilter(details, batch.childProps, refs, params);
+            JSONArray ja = GeneralJsonObjectDao.findObjectsByNamedSql(
+                cachedConnection(conn, batch.subTableInfo.getDatabaseCode()),
+                "select " + q.getLeft() + " from " + batch.subTableInfo.getTableName() + " where " + filter,
+                params, q.getRight());
+            ja = DictionaryMapUtils.mapJsonArray(ja, batch.subTableInfo.fetchDictionaryMapColumns(metaDataCache));
+            if (ja != null) {
+                rows.addAll(ja);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 把查询到的子对象按外键放回到对应的父对象中
+     * @return 放回的子对象
+     */
+    private static List<Map<String, Object>> attachRefrenceBatch(RefrenceBatch batch, JSONArray rows) {
+        List<Map<String, Object>> children = new ArrayList<>(rows.size());
+        String relationName = batch.relation.getRelationName();
+        for (Object row : rows) {
+            if (row instanceof Map) {
+                Map<String, Object> child = (Map<String, Object>) row;
+                List<Map<String, Object>> owners = batch.parentsByFk.get(makeForeignKey(child, batch.childProps));
+                if (owners != null) {
+                    for (Map<String, Object> owner : owners) {
+                        ((JSONArray) owner.get(relationName)).add(child);
                     }
-                    mainObj.put(md.getRelationName(), ja);
+                    children.add(child);
+                }
+            }
+        }
+        return children;
+    }
+
+    private static String makeForeignKey(Map<String, Object> obj, String[] props) {
+        if (props.length == 1) {
+            return StringBaseOpt.castObjectToString(obj.get(props[0]));
+        }
+        StringBuilder key = new StringBuilder();
+        for (String prop : props) {
+            key.append(StringBaseOpt.castObjectToString(obj.get(prop))).append('\u0001');
+        }
+        return key.toString();
+    }
+
+    /**
+     * 单个字段关联用 in，多个字段关联用 (a = ? and b = ?) or (...)
+     */
+    private static String buildForeignKeyFilter(List<MetaRelDetail> details, String[] childProps,
+                                                List<Map<String, Object>> refs, Map<String, Object> params) {
+        StringBuilder filter = new StringBuilder();
+        if (details.size() == 1) {
+            filter.append(details.get(0).getChildColumnCode()).append(" in (");
+            for (int j = 0; j < refs.size(); j++) {
+                if (j > 0) {
+                    filter.append(", ");
+                }
+                String paramName = "fk_" + j;
+                filter.append(':').append(paramName);
+                params.put(paramName, refs.get(j).get(childProps[0]));
+            }
+            return filter.append(')').toString();
+        }
+        for (int j = 0; j < refs.size(); j++) {
+            filter.append(j > 0 ? " or (" : "(");
+            for (int i = 0; i < details.size(); i++) {
+                if (i > 0) {
+                    filter.append(" and ");
                 }
+                String paramName = "fk_" + j + "_" + i;
+                filter.append(details.get(i).getChildColumnCode()).append(" = :").append(paramName);
+                params.put(paramName, refs.get(j).get(childProps[i]));
             }
+            filter.append(')');
         }
+        return filter.toString();
     }
 
     @Override
     public Map<String, Object> getObjectWithChildren(String tableId, Map<String, Object> pk, String [] fields,
                                               String [] parents, String [] children) {
-        MetaTable tableInfo = metaDataCache.getTableInfoAll(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             Map<String, Object> mainObj = (fields != null && fields.length > 0) ?
                 innerGetObjectPartFieldsById(conn, tableInfo, pk, fields)
                 : innerGetObjectById(conn, tableInfo, pk);
 
-            mainObj = DictionaryMapUtils.mapJsonObject(mainObj, tableInfo.fetchDictionaryMapColumns(databaseInfoDao));
+            mainObj = DictionaryMapUtils.mapJsonObject(mainObj, tableInfo.fetchDictionaryMapColumns(metaDataCache));
             return fetchObjectParentAndChildren(tableInfo, mainObj, parents, children);
         }catch (SQLException | IOException e) {
             throw new ObjectException(pk, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
@@ -310,27 +854,11 @@ public class MetaObjectServiceImpl implements MetaObjectService {
     @Override
     public Map<String, Object> fetchObjectParentAndChildren(MetaTable tableInfo, Map<String, Object> mainObj,
                                                      String [] parents, String [] children){
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
-            if(parents != null && parents.length>0){
-                List<MetaRelation> mds = tableInfo.getParents();
-                if(mds!=null) {
-                    for (MetaRelation md : mds) {
-                        if (StringUtils.equalsAny(md.getReferenceName(), parents) && md.getRelationDetails()!=null) {
-                            fetchObjectParent(conn, mainObj, md);
-                        }
-                    }
-                }
-            }
-            List<MetaRelation> mds = tableInfo.getMdRelations();
-            if(mds!=null) {
-                for (MetaRelation md : mds) {
-                    if (StringUtils.equalsAny(md.getReferenceName(), children) && md.getRelationDetails()!=null) {
-                        fetchObjectRefrence(conn, mainObj, md);
-                    }
-                }
-            }
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
+            fetchObjectRelations(conn, dataSource, mainObj, tableInfo,
+                (parents != null && parents.length > 0) ? parents : new String[0], children);
             return mainObj;
         } catch (SQLException | IOException e) {
             throw new ObjectException(mainObj, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
@@ -339,16 +867,16 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public Map<String, Object>  getObjectWithChildren(String tableId, Map<String, Object> pk, int withChildrenDeep) {
-        MetaTable tableInfo = metaDataCache.getTableInfoAll(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             Map<String, Object> mainObj = innerGetObjectById(conn, tableInfo , pk);
-            mainObj = DictionaryMapUtils.mapJsonObject(mainObj, tableInfo.fetchDictionaryMapColumns(databaseInfoDao));
+            mainObj = DictionaryMapUtils.mapJsonObject(mainObj, tableInfo.fetchDictionaryMapColumns(metaDataCache));
             if(withChildrenDeep>0 && mainObj!=null) {
-                fetchObjectRefrences(conn, mainObj, tableInfo, withChildrenDeep);
+                fetchObjectRefrences(conn, dataSource, mainObj, tableInfo, withChildrenDeep);
             }
-            fetchObjectParents(conn, mainObj, tableInfo);
+            fetchObjectRelations(conn, dataSource, mainObj, tableInfo, null, null);
             return mainObj;
         } catch (SQLException | IOException e) {
             throw new ObjectException(pk, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
@@ -357,7 +885,7 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public Map<String, Object> makeNewObject(String tableId, Map<String, Object> extParams){
-        MetaTable tableInfo = metaDataCache.getTableInfoWithParents(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
         JSONObject objectMap = new JSONObject();
         if(extParams!=null && !extParams.isEmpty()){
             for(MetaColumn col : tableInfo.getColumns()){
@@ -367,12 +895,12 @@ public class MetaObjectServiceImpl implements MetaObjectService {
                 }
             }
         }
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
-            makeObjectValueByGenerator(objectMap, extParams, tableInfo, dao, 1l,true);
-            fetchObjectParents(conn, objectMap, tableInfo);
+            makeObjectValueByGenerator(objectMap, extParams, tableInfo, dao, null, true);
+            fetchObjectRelations(conn, dataSource, objectMap, tableInfo, null, null);
             return objectMap;
         } catch (SQLException | IOException e) {
             throw new ObjectException(objectMap, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
@@ -386,12 +914,13 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public int saveObject(String tableId, Map<String, Object> object, Map<String, Object> extParams) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
-            makeObjectValueByGenerator(object, extParams, tableInfo, dao, 1l,false);
+            makeObjectValueByGenerator(object, extParams, tableInfo, dao, null, false);
             prepareObjectForSave(object, tableInfo);
             return dao.saveNewObject(object);
         } catch (SQLException | IOException e) {
@@ -404,13 +933,76 @@ public class MetaObjectServiceImpl implements MetaObjectService {
         return saveObject(tableId,object, null);
     }
 
+    @Override
+    public JSONArray saveObjects(String tableId, List<Map<String, Object>> objects, Map<String, Object> extParams) {
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        JSONObject[] results = new JSONObject[objects.size()];
+        try {
+            Connection conn = fetchWriteConnect(dataSource);
+            GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
+            SubOrderAllocator subOrders = createSubOrderAllocator(tableInfo);
+            for (Map<String, Object> object : objects) {
+                subOrders.reserve(tableInfo, object);
+            }
+            for (int i = 0; i < results.length; i++) {
+                Map<String, Object> object = objects.get(i);
+                try {
+                    makeObjectValueByGenerator(object, extParams, tableInfo, dao, subOrders, false);
+                    prepareObjectForSave(object, tableInfo);
+                } catch (RuntimeException | SQLException | IOException e) {
+                    results[i] = MetaObjectBatchWriter.makeErrorResult(i, e.getMessage());
+                }
+            }
+            createBatchWriter(conn, tableInfo).insertObjects(objects, results);
+        } catch (SQLException e) {
+            throw new ObjectException(tableId, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
+        }
+        JSONArray ja = new JSONArray(results.length);
+        Collections.addAll(ja, (Object[]) results);
+        return ja;
+    }
+
+    @Override
+    public JSONArray saveObjects(String tableId, List<Map<String, Object>> objects) {
+        return saveObjects(tableId, objects, null);
+    }
+
+    @Override
+    public JSONArray mergeObjects(String tableId, List<Map<String, Object>> objects) {
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(tableInfo.getDatabaseCode());
+        JSONObject[] results = new JSONObject[objects.size()];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                prepareObjectForSave(objects.get(i), tableInfo);
+            } catch (RuntimeException e) {
+                results[i] = MetaObjectBatchWriter.makeErrorResult(i, e.getMessage());
+            }
+        }
+        try {
+            Connection conn = fetchWriteConnect(dataSource);
+            createBatchWriter(conn, tableInfo)
+                .mergeObjects(objects, results, databaseInfo == null ? null : databaseInfo.getDBType());
+        } catch (SQLException e) {
+            throw new ObjectException(tableId, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
+        }
+        JSONArray ja = new JSONArray(results.length);
+        Collections.addAll(ja, (Object[]) results);
+        return ja;
+    }
+
     @Override
     public int updateObject(String tableId, Map<String, Object> object) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
         prepareObjectForSave(object, tableInfo);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             return GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo).updateObject(object);
         } catch (SQLException e) {
             throw new ObjectException(object, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
@@ -419,11 +1011,12 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public int updateObjectFields(String tableId, final Collection<String> fields, final Map<String, Object> object){
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
         prepareObjectForSave(object, tableInfo);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
             return dao.updateObjectsByProperties(fields, object, dao.makePkFieldMap(object));
         } catch (SQLException e) {
@@ -434,11 +1027,12 @@ public class MetaObjectServiceImpl implements MetaObjectService {
     @Override
     public int updateObjectsByProperties(String tableId, final Collection<String> fields,
                                   final Map<String, Object> fieldValues,final Map<String, Object> filterProperties){
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
         prepareObjectForSave(fieldValues, tableInfo);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             return GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo)
                     .updateObjectsByProperties(fields, fieldValues, filterProperties);
         } catch (SQLException e) {
@@ -469,17 +1063,137 @@ public class MetaObjectServiceImpl implements MetaObjectService {
     }
     @Override
     public void deleteObject(String tableId, Map<String, Object> pk) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
         //prepareObjectForSave(pk, tableInfo);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo).deleteObjectById(pk);
             deleteFulltextIndex(pk,tableId);
         } catch (SQLException e) {
             throw new ObjectException(pk, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
         }
     }
+    @Override
+    public int deleteObjects(String tableId, List<Map<String, Object>> pks) {
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
+        MetaTableAccessPlan plan = tableInfo.fetchAccessPlan();
+        String[] pkProperties = plan.getPkProperties();
+        if (pkProperties.length == 0) {
+            throw new ObjectException(tableId, PersistenceException.ORM_METADATA_EXCEPTION,
+                "表或者视图 " + tableInfo.getTableName() + " 没有主键！");
+        }
+        // 去掉重复的主键
+        Map<String, Map<String, Object>> uniquePks = new LinkedHashMap<>(pks.size() * 4 / 3 + 1);
+        for (Map<String, Object> pk : pks) {
+            if (!GeneralJsonObjectDao.checkHasAllPkColumns(tableInfo, pk)) {
+                throw new ObjectException("表或者视图 " + tableInfo.getTableName()
+                    + " 缺少对应主键:" + JSON.toJSONString(pk));
+            }
+            uniquePks.putIfAbsent(makeForeignKey(pk, pkProperties), pk);
+        }
+        if (uniquePks.isEmpty()) {
+            return 0;
+        }
+        List<Map<String, Object>> pkList = new ArrayList<>(uniquePks.values());
+        String[] pkColumns = MetaObjectBatchWriter.fetchColumnNames(plan.getPkColumns());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        try {
+            Connection conn = fetchWriteConnect(dataSource);
+            MetaObjectBatchWriter writer = createBatchWriter(conn, tableInfo);
+            List<MetaRelation> mds = tableInfo.getMdRelations();
+            if (mds != null && !mds.isEmpty()) {
+                List<Map<String, Object>> parentObjs = fetchRelationParents(writer, tableInfo, mds, pkColumns, pkList);
+                for (MetaRelation md : mds) {
+                    MetaTable relTableInfo = fetchTableInfo(md.getChildTableId());
+                    if ("T".equals(relTableInfo.getTableType())) {
+                        invalidateRowCounts(relTableInfo.getTableId());
+                        deleteRelationChildren(conn, md, relTableInfo, parentObjs);
+                    }
+                }
+            }
+            int count = writer.deleteByKeys(pkColumns, pkProperties, pkList);
+            deleteFulltextIndexes(pkList, tableInfo);
+            return count;
+        } catch (SQLException e) {
+            throw new ObjectException(tableId, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
+        }
+    }
+
+    /**
+     * 关联的父表字段都是主键时直接用主键，否则批量查询出关联用到的字段
+     */
+    private static List<Map<String, Object>> fetchRelationParents(MetaObjectBatchWriter writer, MetaTable tableInfo,
+                                                                  List<MetaRelation> mds, String[] pkColumns,
+                                                                  List<Map<String, Object>> pkList) throws SQLException {
+        MetaTableAccessPlan plan = tableInfo.fetchAccessPlan();
+        Set<MetaColumn> parentColumns = new LinkedHashSet<>();
+        boolean allPk = true;
+        for (MetaRelation md : mds) {
+            if (md.getRelationDetails() == null) {
+                continue;
+            }
+            for (MetaRelDetail detail : md.getRelationDetails()) {
+                MetaColumn column = plan.findFieldByColumn(detail.getParentColumnCode());
+                if (column == null) {
+                    throw new ObjectException(tableInfo.getTableId(), PersistenceException.ORM_METADATA_EXCEPTION,
+                        "关联 " + md.getRelationName() + " 的字段 " + detail.getParentColumnCode() + " 不存在！");
+                }
+                parentColumns.add(column);
+                allPk = allPk && column.isPrimaryKey();
+            }
+        }
+        if (allPk) {
+            return pkList;
+        }
+        return writer.queryByKeys(parentColumns.toArray(new MetaColumn[0]), pkColumns, plan.getPkProperties(), pkList);
+    }
+
+    private int deleteRelationChildren(Connection conn, MetaRelation md, MetaTable relTableInfo,
+                                       List<Map<String, Object>> parentObjs) throws SQLException {
+        List<MetaRelDetail> details = md.getRelationDetails();
+        if (details == null || details.isEmpty()) {
+            return 0;
+        }
+        String[] childColumns = new String[details.size()];
+        String[] childProps = new String[details.size()];
+        for (int i = 0; i < childColumns.length; i++) {
+            childColumns[i] = details.get(i).getChildColumnCode();
+            childProps[i] = FieldType.mapPropName(childColumns[i]);
+        }
+        Map<String, Map<String, Object>> refs = new LinkedHashMap<>(parentObjs.size() * 4 / 3 + 1);
+        for (Map<String, Object> parentObj : parentObjs) {
+            Map<String, Object> ref = md.fetchChildFk(parentObj);
+            if (ref != null) {
+                refs.putIfAbsent(makeForeignKey(ref, childProps), ref);
+            }
+        }
+        if (refs.isEmpty()) {
+            return 0;
+        }
+        return createBatchWriter(conn, relTableInfo)
+            .deleteByKeys(childColumns, childProps, new ArrayList<>(refs.values()));
+    }
+
+    /**
+     * 数据库删除完成后统一删除全文检索文档，只判断一次表是否需要全文检索
+     */
+    private void deleteFulltextIndexes(List<Map<String, Object>> pkList, MetaTable metaTable) {
+        if (esObjectIndexer == null || !("T".equals(metaTable.getFulltextSearch())
+            || "C".equals(metaTable.getTableType()))) {
+            return;
+        }
+        for (Map<String, Object> pk : pkList) {
+            try {
+                esObjectIndexer.deleteDocument(mapObjectToDocument(pk, metaTable));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void checkUpdateTimeStamp(Map<String, Object> dbObject, Map<String, Object> object) {
         Object oldDate = dbObject.get(MetaTable.UPDATE_CHECK_TIMESTAMP_PROP);
         Object newDate = object.get(MetaTable.UPDATE_CHECK_TIMESTAMP_PROP);
@@ -537,7 +1251,8 @@ public class MetaObjectServiceImpl implements MetaObjectService {
         }
     }
     public int innerSaveObject(String tableId, Map<String, Object> mainObj,Map<String, Object> extParams, boolean isUpdate) {
-        MetaTable tableInfo = metaDataCache.getTableInfoWithRelations(tableId);
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
         if ("C".equals(tableInfo.getTableType())) {
             mainObj = mapDtoToPo(mainObj);
         }
@@ -549,15 +1264,15 @@ public class MetaObjectServiceImpl implements MetaObjectService {
                 mainObj.put(MetaTable.UPDATE_CHECK_TIMESTAMP_PROP, DatetimeOpt.currentSqlDate());
             }
         }
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect( DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             if(isUpdate) {
                 prepareObjectForSave(mainObj, tableInfo);
                 GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo).updateObject(mainObj);
             }else {
                 GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
-                makeObjectValueByGenerator(mainObj, extParams, tableInfo, dao, 1l,false);
+                makeObjectValueByGenerator(mainObj, extParams, tableInfo, dao, null, false);
                 prepareObjectForSave(mainObj, tableInfo);
                 dao.saveNewObject(mainObj);
                 //GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo).saveNewObject(mainObj);
@@ -565,21 +1280,30 @@ public class MetaObjectServiceImpl implements MetaObjectService {
             List<MetaRelation> mds = tableInfo.getMdRelations();
             if(mds!=null) {
                 for (MetaRelation md : mds) {
-                    MetaTable relTableInfo = metaDataCache.getTableInfo(md.getChildTableId());
+                    MetaTable relTableInfo = fetchTableInfo(md.getChildTableId());
                     if ("T".equals(relTableInfo.getTableType())) {
                         Object subObjects = mainObj.get(md.getRelationName());
                         if (subObjects instanceof List) {
+                            invalidateRowCounts(relTableInfo.getTableId());
                             List<Map<String, Object>> subTable = (List<Map<String, Object>>) subObjects;
                             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, relTableInfo);
                             Map<String, Object> ref = md.fetchChildFk(mainObj);
-                            long order = 1l;
+                            // 父对象的行已经在本事务中锁定，整个子表只查询一次 SUB_ORDER 的最大值
+                            SubOrderAllocator subOrders = createSubOrderAllocator(relTableInfo);
                             for (Map<String, Object> subObj : subTable) {
                                 subObj.putAll(ref);
-                                makeObjectValueByGenerator(subObj, extParams, relTableInfo, dao, order, false);
-                                order++;
+                                subOrders.reserve(relTableInfo, subObj);
+                            }
+                            for (Map<String, Object> subObj : subTable) {
+                                makeObjectValueByGenerator(subObj, extParams, relTableInfo, dao, subOrders, false);
                                 prepareObjectForSave(subObj, relTableInfo);
                             }
-                            dao.replaceObjectsAsTabulation(subTable, ref);
+                            if (ref == null || ref.isEmpty()) {
+                                dao.replaceObjectsAsTabulation(subTable, ref);
+                            } else {
+                                recordTabulation(createBatchWriter(conn, relTableInfo)
+                                    .replaceObjectsAsTabulation(subTable, ref));
+                            }
                         }
                     }
                 }
@@ -613,18 +1337,20 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public void deleteObjectWithChildren(String tableId, Map<String, Object> pk) {
-        MetaTable tableInfo = metaDataCache.getTableInfoWithRelations(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        invalidateRowCounts(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = fetchWriteConnect(dataSource);
             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
             Map<String, Object> mainObj = dao.getObjectById(pk);
 
             List<MetaRelation> mds = tableInfo.getMdRelations();
             if(mds!=null) {
                 for (MetaRelation md : mds) {
-                    MetaTable relTableInfo = metaDataCache.getTableInfo(md.getChildTableId());
+                    MetaTable relTableInfo = fetchTableInfo(md.getChildTableId());
                     if ("T".equals(relTableInfo.getTableType())) {
+                        invalidateRowCounts(relTableInfo.getTableId());
                         GeneralJsonObjectDao.createJsonObjectDao(conn, relTableInfo)
                             .deleteObjectsByProperties(md.fetchChildFk(mainObj));
                     }
@@ -639,12 +1365,12 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public JSONArray listObjectsByProperties(String tableId, Map<String, Object> filter) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             JSONArray ja = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo).listObjectsByProperties(filter);
-            return DictionaryMapUtils.mapJsonArray(ja, tableInfo.fetchDictionaryMapColumns(databaseInfoDao));
+            return DictionaryMapUtils.mapJsonArray(ja, tableInfo.fetchDictionaryMapColumns(metaDataCache));
         } catch (SQLException | IOException e) {
             throw new ObjectException(filter, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
         }
@@ -652,9 +1378,7 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     private HashSet<String> collectPartFields(MetaTable tableInfo, String [] fields){
         HashSet<String> fieldSet = new HashSet<>((fields.length + 5) * 3 / 2);
-        for(TableField pkField : tableInfo.getPkFields()) {
-            fieldSet.add(pkField.getPropertyName());
-        }
+        Collections.addAll(fieldSet, tableInfo.fetchAccessPlan().getPkProperties());
         if(!"0".equals(tableInfo.getWorkFlowOptType())){
             fieldSet.add(MetaTable.WORKFLOW_INST_ID_PROP);
             fieldSet.add(MetaTable.WORKFLOW_NODE_INST_ID_PROP);
@@ -701,61 +1425,284 @@ public class MetaObjectServiceImpl implements MetaObjectService {
         po.put(MetaTable.OBJECT_AS_CLOB_PROP, jsonString);
         return po;
     }
-    @Override
-    public JSONArray pageQueryObjects(String tableId, String extFilter,
-                                      Map<String, Object> params, String [] fields,
-                                      PageDesc pageDesc) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
+    /**
+     * 按表元数据拼接的查询语句，分页查询和导出共用
+     */
+    private static class TableQuery {
+        final TableField[] fields;
+        final String fieldSql;
+        final String tableName;
+        final String filter;
+        final String orderBy;
+        /**
+         * from 表 where 条件，查询语句、计数语句和窗口计数语句共用
+         */
+        final String fromSql;
+        final String selectSql;
+        final String countSql;
 
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
-        try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
-            //GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
-            HashSet<String> fieldSet = null ;
-            if(fields !=null && fields.length>0) {
-                fieldSet = collectPartFields(tableInfo, fields);
+        TableQuery(TableField[] fields, String fieldSql, String tableName, String filter, String orderBy) {
+            this.fields = fields;
+            this.fieldSql = fieldSql;
+            this.tableName = tableName;
+            this.filter = filter;
+            this.orderBy = orderBy;
+            this.fromSql = StringUtils.isBlank(filter) ? " from " + tableName
+                : " from " + tableName + " where " + filter;
+            this.selectSql = "select " + fieldSql + fromSql;
+            this.countSql = "select count(1) as totalRows" + fromSql;
+        }
+
+        /**
+         * 缓存中的语句是共享的，增加条件或者修改排序时返回新的对象
+         * @param extraFilter 附加的条件，和原有条件用 and 连接，为空时不增加
+         * @param newOrderBy 新的排序语句，不含 order by
+         */
+        TableQuery withFilter(String extraFilter, String newOrderBy) {
+            String newFilter = filter;
+            if (StringUtils.isNotBlank(extraFilter)) {
+                newFilter = StringUtils.isBlank(filter) ? extraFilter : "(" + filter + ") and " + extraFilter;
             }
-            Pair<String, TableField[]> q = (fieldSet == null) ?
-                GeneralJsonObjectDao.buildFieldSqlWithFields(tableInfo, null, true)
-                : GeneralJsonObjectDao.buildPartFieldSqlWithFields(tableInfo, fieldSet, null, false);
+            return new TableQuery(fields, fieldSql, tableName, newFilter, newOrderBy);
+        }
 
-            String filter = GeneralJsonObjectDao.buildFilterSql(tableInfo,null, params.keySet());
-            if(StringUtils.isNotBlank(extFilter)){
-                if(StringUtils.isNotBlank(filter)) {
-                    filter = extFilter + " and " + filter;
-                } else {
-                    filter = extFilter;
-                }
+        String fetchQuerySql() {
+            return StringUtils.isBlank(orderBy) ? selectSql : selectSql + " order by " + orderBy;
+        }
+
+        /**
+         * 在字段列表后增加 count(*) over() 窗口函数，每一行都带有满足条件的总行数
+         */
+        String fetchWindowCountSql() {
+            String sql = "select " + fieldSql + ", count(*) over() as " + WINDOW_COUNT_COLUMN + fromSql;
+            return StringUtils.isBlank(orderBy) ? sql : sql + " order by " + orderBy;
+        }
+    }
+
+    /**
+     * 按表元数据拼接查询语句，拼接结果缓存在表的访问计划中；
+     * 语句只和查询字段、对应表字段的过滤参数名、排序参数、附加条件有关，和参数值无关。
+     * 不对应表字段的参数不影响语句，不放入缓存的键；fetchSelfOrderSql 使用的排序参数中直接写排序语句（ORDER_BY）
+     * 或者排序字段、方向不能识别时不缓存，避免任意的参数值撑满缓存
+     */
+    private TableQuery buildTableQuery(MetaTable tableInfo, String extFilter,
+                                       Map<String, Object> params, String [] fields) {
+        MetaTableAccessPlan plan = tableInfo.fetchAccessPlan();
+        StringBuilder key = new StringBuilder("Q|");
+        if (fields != null && fields.length > 0) {
+            String[] sortedFields = Arrays.copyOf(fields, fields.length);
+            Arrays.sort(sortedFields);
+            key.append(String.join(",", sortedFields));
+        }
+        key.append('|').append(extFilter == null ? "" : extFilter).append('|');
+        TreeSet<String> filterNames = new TreeSet<>();
+        for (String paramName : params.keySet()) {
+            if (plan.findFieldByName(paramName) != null) {
+                filterNames.add(paramName);
             }
+        }
+        key.append(String.join(",", filterNames));
+        String orderBy = StringBaseOpt.castObjectToString(params.get("ORDER_BY"));
+        String sort = StringBaseOpt.castObjectToString(params.get("sort"));
+        String order = StringBaseOpt.castObjectToString(params.get("order"));
+        if (StringUtils.isNotBlank(orderBy)
+            || (StringUtils.isNotBlank(sort) && plan.findFieldByName(sort) == null
+                && plan.findFieldByColumn(sort) == null)
+            || (StringUtils.isNotBlank(order) && !StringUtils.equalsAnyIgnoreCase(order, "asc", "desc"))) {
+            return compileTableQuery(tableInfo, extFilter, params, fields);
+        }
+        key.append('|').append(StringUtils.defaultString(sort))
+            .append('|').append(StringUtils.lowerCase(StringUtils.defaultString(order)));
+        return plan.fetchSqlTemplate(key.toString(),
+            (k) -> compileTableQuery(tableInfo, extFilter, params, fields));
+    }
+
+    private TableQuery compileTableQuery(MetaTable tableInfo, String extFilter,
+                                         Map<String, Object> params, String [] fields) {
+        HashSet<String> fieldSet = null ;
+        if(fields !=null && fields.length>0) {
+            fieldSet = collectPartFields(tableInfo, fields);
+        }
+        Pair<String, TableField[]> q = (fieldSet == null) ?
+            GeneralJsonObjectDao.buildFieldSqlWithFields(tableInfo, null, true)
+            : GeneralJsonObjectDao.buildPartFieldSqlWithFields(tableInfo, fieldSet, null, false);
 
-            String sql = "select " + q.getLeft() +" from " +tableInfo.getTableName();
+        String filter = GeneralJsonObjectDao.buildFilterSql(tableInfo,null, params.keySet());
+        if(StringUtils.isNotBlank(extFilter)){
             if(StringUtils.isNotBlank(filter)) {
-                sql = sql + " where " + filter;
+                filter = extFilter + " and " + filter;
+            } else {
+                filter = extFilter;
             }
+        }
 
-            String orderBy = GeneralJsonObjectDao.fetchSelfOrderSql(sql, params);
-            if(StringUtils.isNotBlank(orderBy)){
-                sql = sql + " order by "
-                    + QueryUtils.cleanSqlStatement(orderBy);
+        TableQuery query = new TableQuery(q.getRight(), q.getLeft(), tableInfo.getTableName(), filter, null);
+        String orderBy = GeneralJsonObjectDao.fetchSelfOrderSql(query.selectSql, params);
+        if(StringUtils.isNotBlank(orderBy)){
+            query = query.withFilter(null, QueryUtils.cleanSqlStatement(orderBy));
+        }
+        return query;
+    }
+
+    private interface CountQuery {
+        Object query() throws SQLException, IOException;
+    }
+
+    /**
+     * 取出并移除请求中的 countPolicy 参数，没有指定时使用表的配置，再没有使用默认配置
+     */
+    private CountPolicy fetchCountPolicy(String tableId, Map<String, Object> params) {
+        Object policy = params.remove(COUNT_POLICY_PARAM);
+        CountPolicy tablePolicy = tableCountPolicyMap.getOrDefault(tableId, countPolicy);
+        return CountPolicy.valueOf(StringBaseOpt.castObjectToString(policy), tablePolicy);
+    }
+
+    private static void markTotalRows(PageDesc pageDesc, int totalRows, boolean exact) {
+        pageDesc.setTotalRows(totalRows);
+        if (pageDesc instanceof MetaPageDesc) {
+            ((MetaPageDesc) pageDesc).setTotalRowsExact(exact);
+        }
+    }
+
+    private static String makeCountSignature(String countSql, Map<String, Object> params) {
+        Map<String, Object> filterParams = new TreeMap<>(params);
+        for (String ignore : COUNT_IGNORE_PARAMS) {
+            filterParams.remove(ignore);
+        }
+        return countSql + '\u0001' + JSON.toJSONString(filterParams);
+    }
+
+    private void countTotalRows(String tableId, String countSql, Map<String, Object> params,
+                                CountPolicy policy, PageDesc pageDesc, int pageRows, CountQuery countQuery)
+        throws SQLException, IOException {
+        if (policy == CountPolicy.SKIP) {
+            // 满页时只知道至少还有一行，不满页时可以算出准确的总行数
+            if (pageRows >= pageDesc.getPageSize()) {
+                markTotalRows(pageDesc, pageDesc.getRowStart() + pageRows + 1, false);
+            } else {
+                markTotalRows(pageDesc, pageDesc.getRowStart() + pageRows, pageRows > 0 || pageDesc.getRowStart() == 0);
+            }
+            return;
+        }
+        String signature = null;
+        long version = 0;
+        if (policy == CountPolicy.CACHED || policy == CountPolicy.ESTIMATED) {
+            signature = makeCountSignature(countSql, params);
+            version = rowCountCache.currentVersion(tableId);
+            Integer totalRows = rowCountCache.get(tableId, version, signature);
+            if (totalRows != null) {
+                markTotalRows(pageDesc, totalRows, false);
+                return;
+            }
+        }
+        Integer totalRows = NumberBaseOpt.castObjectToInteger(countQuery.query());
+        markTotalRows(pageDesc, totalRows == null ? 0 : totalRows, true);
+        if (signature != null && totalRows != null) {
+            rowCountCache.put(tableId, version, signature, totalRows);
+        }
+    }
+
+    /**
+     * 从数据库的统计信息中获取表的估算行数，不支持的数据库、没有统计信息或者没有权限读取系统表时返回null；
+     * PostgreSql 的事务中语句出错后整个事务不能再使用，查询前设置保存点，出错时回滚到保存点
+     */
+    private static Long fetchEstimatedRows(Connection conn, String tableName, DBType dbType) throws SQLException {
+        if (dbType == null) {
+            return null;
+        }
+        String name = tableName.substring(tableName.lastIndexOf('.') + 1);
+        String sql;
+        switch (dbType) {
+            case MySql:
+                sql = "select table_rows from information_schema.tables where table_schema = database() and table_name = ?";
+                break;
+            case PostgreSql:
+                sql = "select cast(reltuples as bigint) from pg_class where relkind = 'r' and relname = lower(?)";
+                break;
+            case Oracle:
+                sql = "select num_rows from user_tables where table_name = upper(?)";
+                break;
+            case SqlServer:
+                sql = "select sum(rows) from sys.partitions where object_id = object_id(?) and index_id in (0, 1)";
+                name = tableName;
+                break;
+            case DB2:
+                sql = "select card from syscat.tables where tabschema = current schema and tabname = upper(?)";
+                break;
+            default:
+                return null;
+        }
+        Savepoint savepoint = dbType == DBType.PostgreSql && !conn.getAutoCommit() ? conn.setSavepoint() : null;
+        Long rows = null;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    rows = NumberBaseOpt.castObjectToLong(rs.getObject(1));
+                }
+            }
+        } catch (SQLException e) {
+            // 没有权限读取系统表时按精确计数处理
+            if (savepoint != null) {
+                conn.rollback(savepoint);
+                savepoint = null;
             }
+        }
+        if (savepoint != null) {
+            conn.releaseSavepoint(savepoint);
+        }
+        // 没有收集过统计信息时各数据库返回 null 或者 -1
+        return rows == null || rows < 0 ? null : rows;
+    }
+
+    @Override
+    public JSONArray pageQueryObjects(String tableId, String extFilter,
+                                      Map<String, Object> params, String [] fields,
+                                      PageDesc pageDesc) {
+        MetaTable tableInfo = fetchTableInfo(tableId);
 
-            String querySql = QueryUtils.buildLimitQuerySQL(sql,
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        try {
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
+            Connection queryConn = cachedConnection(conn, tableInfo.getDatabaseCode());
+            CountPolicy policy = fetchCountPolicy(tableId, params);
+            TableQuery query = buildTableQuery(tableInfo, extFilter, params, fields);
+
+            String querySql = QueryUtils.buildLimitQuerySQL(query.fetchQuerySql(),
                 pageDesc.getRowStart(), pageDesc.getPageSize(),false,
                 databaseInfo.getDBType());
 
-            JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(conn,
-                querySql, params, q.getRight());//, pageDesc.getPageNo(), pageDesc.getPageSize());
-
-            String sGetCountSql = "select count(1) as totalRows from " + tableInfo.getTableName();
-            if(StringUtils.isNotBlank(filter)) {
-                sGetCountSql = sGetCountSql + " where " + filter;
+            JSONArray objs = null;
+            if (policy == CountPolicy.EXACT && useWindowCount(tableId)
+                && supportWindowCount(conn, tableInfo.getDatabaseCode(), databaseInfo.getDBType())) {
+                Pair<JSONArray, Integer> page = queryPageWithWindowCount(queryConn, query, params, pageDesc,
+                    databaseInfo.getDBType());
+                // 当前页没有数据时拿不到总行数，只需要再单独计数，当前页就是空的
+                objs = page.getLeft();
+                if (page.getRight() != null) {
+                    markTotalRows(pageDesc, page.getRight(), true);
+                    policy = null;
+                }
+            }
+            if (objs == null) {
+                objs = GeneralJsonObjectDao.findObjectsByNamedSql(queryConn, querySql, params, query.fields);
             }
 
-            Object obj = DatabaseAccess.getScalarObjectQuery(conn,
-                sGetCountSql, params);
-            pageDesc.setTotalRows(NumberBaseOpt.castObjectToInteger(obj));
+            if (policy == CountPolicy.ESTIMATED && StringUtils.isBlank(query.filter)) {
+                Long estimated = fetchEstimatedRows(conn, tableInfo.getTableName(), databaseInfo.getDBType());
+                if (estimated != null) {
+                    markTotalRows(pageDesc, (int) Math.min(estimated, Integer.MAX_VALUE), false);
+                    policy = null;
+                }
+            }
+            if (policy != null) {
+                final String countSql = query.countSql;
+                countTotalRows(tableId, countSql, params, policy, pageDesc, objs == null ? 0 : objs.size(),
+                    () -> DatabaseAccess.getScalarObjectQuery(queryConn, countSql, params));
+            }
 
-            JSONArray ja = DictionaryMapUtils.mapJsonArray(objs, tableInfo.fetchDictionaryMapColumns(databaseInfoDao));
+            JSONArray ja = DictionaryMapUtils.mapJsonArray(objs, tableInfo.fetchDictionaryMapColumns(metaDataCache));
             if ("C".equals(tableInfo.getTableType())) {
                 ja=mapListPoToDto(ja);
             }
@@ -766,6 +1713,231 @@ public class MetaObjectServiceImpl implements MetaObjectService {
         }
     }
 
+    /**
+     * 按排序参数生成排序语句，和全部字段的查询一样解析，不受查询字段的影响；全部字段的查询语句缓存在访问计划中
+     */
+    private static String fetchSelfOrderBy(MetaTable tableInfo, Map<String, Object> params) {
+        String selectSql = tableInfo.fetchAccessPlan().fetchSqlTemplate("S|",
+            (k) -> "select " + GeneralJsonObjectDao.buildFieldSqlWithFields(tableInfo, null, true).getLeft()
+                + " from " + tableInfo.getTableName());
+        String orderBy = GeneralJsonObjectDao.fetchSelfOrderSql(selectSql, params);
+        return StringUtils.isBlank(orderBy) ? null : QueryUtils.cleanSqlStatement(orderBy);
+    }
+
+    /**
+     * 按键值分页的查询语句：结果中补上排序字段，按排序字段排序，有上一页的键值时增加定位条件
+     * @param params 查询参数，定位条件的参数放入其中
+     * @param keyValues 上一页最后一行的排序字段值，第一页为null
+     */
+    private TableQuery buildSeekQuery(MetaTable tableInfo, Map<String, Object> params, String [] fields,
+                                      List<KeysetPaging.SortKey> sortKeys, JSONArray keyValues) {
+        // 结果中必须包含排序字段，才能从最后一行生成下一页的游标
+        String[] queryFields = fields;
+        if (fields != null && fields.length > 0) {
+            queryFields = Arrays.copyOf(fields, fields.length + sortKeys.size());
+            for (int i = 0; i < sortKeys.size(); i++) {
+                queryFields[fields.length + i] = sortKeys.get(i).column.getPropertyName();
+            }
+        }
+        TableQuery query = buildTableQuery(tableInfo, null, params, queryFields);
+        String seekFilter = keyValues == null ? null : KeysetPaging.buildSeekFilter(sortKeys, keyValues, params);
+        return query.withFilter(seekFilter, KeysetPaging.buildOrderBy(sortKeys));
+    }
+
+    @Override
+    public SeekPageResult seekQueryObjects(String tableId, Map<String, Object> params, String [] fields,
+                                           String pageToken, int pageSize) {
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        String orderBy = fetchSelfOrderBy(tableInfo, params);
+        List<KeysetPaging.SortKey> sortKeys = KeysetPaging.parseSortKeys(tableInfo.fetchAccessPlan(), orderBy);
+        String signature = KeysetPaging.makeSortSignature(tableId, orderBy);
+        JSONObject token = KeysetPaging.decodeToken(pageToken, signature);
+        // 游标中的键值绑定到参数的副本上，不修改调用者的参数
+        Map<String, Object> queryParams = params;
+        TableQuery query;
+        if (sortKeys != null) {
+            JSONArray keyValues = null;
+            if (token != null) {
+                // 签名相同但字段定义变化（比如主键、非空属性）后，游标中的键值和排序字段对不上
+                if (!(token.get("k") instanceof JSONArray) || token.getJSONArray("k").size() != sortKeys.size()) {
+                    throw new ObjectException(pageToken, ObjectException.DATA_VALIDATE_ERROR,
+                        "分页游标和当前的排序字段不一致，请从第一页重新查询！");
+                }
+                keyValues = token.getJSONArray("k");
+                queryParams = new HashMap<>(params);
+            }
+            query = buildSeekQuery(tableInfo, queryParams, fields, sortKeys, keyValues);
+        } else {
+            query = buildTableQuery(tableInfo, null, params, fields).withFilter(null, orderBy);
+        }
+        Integer offset = sortKeys == null && token != null ? NumberBaseOpt.castObjectToInteger(token.get("o")) : null;
+        if (offset == null || offset < 0) {
+            offset = 0;
+        }
+        int limit = pageSize > 0 ? pageSize : DEFAULT_SEEK_PAGE_SIZE;
+        try {
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
+            // 多查一行用来判断是否还有下一页
+            String querySql = QueryUtils.buildLimitQuerySQL(query.fetchQuerySql(),
+                offset, limit + 1, false, databaseInfo.getDBType());
+            JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(
+                cachedConnection(conn, tableInfo.getDatabaseCode()), querySql, queryParams, query.fields);
+            SeekPageResult result = new SeekPageResult();
+            result.setPageSize(limit);
+            result.setSeekMode(sortKeys != null);
+            if (objs != null && objs.size() > limit) {
+                objs = new JSONArray(objs.subList(0, limit));
+                result.setNextPageToken(sortKeys != null ?
+                    KeysetPaging.encodeSeekToken(signature,
+                        KeysetPaging.fetchKeyValues(sortKeys, objs.getJSONObject(limit - 1)))
+                    : KeysetPaging.encodeOffsetToken(signature, offset + limit));
+            }
+            JSONArray ja = DictionaryMapUtils.mapJsonArray(objs, tableInfo.fetchDictionaryMapColumns(metaDataCache));
+            if ("C".equals(tableInfo.getTableType())) {
+                ja = mapListPoToDto(ja);
+            }
+            result.setObjList(ja);
+            return result;
+        } catch (SQLException | IOException e) {
+            throw new ObjectException(params, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
+        }
+    }
+
+    /**
+     * 按键值分批查询，每批用 GeneralJsonObjectDao 查询，字段类型的转换和分页查询一致；
+     * 批与批之间不保持打开的结果集，数据字典的懒加载可以使用同一个连接。
+     * 排序不能按键值定位时和 seekQueryObjects 一样退回到按偏移量分批，排序后补上主键保证顺序唯一
+     */
+    @Override
+    public int exportObjects(String tableId, Map<String, Object> params, String [] fields,
+                             MetaObjectService.RowHandler rowHandler) throws IOException {
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DatabaseInfo databaseInfo = metaDataCache.getDatabaseInfo(tableInfo.getDatabaseCode());
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        MetaTableAccessPlan plan = tableInfo.fetchAccessPlan();
+        String orderBy = fetchSelfOrderBy(tableInfo, params);
+        List<KeysetPaging.SortKey> sortKeys = KeysetPaging.parseSortKeys(plan, orderBy);
+        TableQuery offsetQuery = null;
+        // 结果中为生成键值补上的排序字段，交给 rowHandler 前去掉
+        List<String> extraProps = new ArrayList<>();
+        if (sortKeys == null) {
+            StringBuilder offsetOrderBy = new StringBuilder(StringUtils.defaultString(orderBy));
+            for (MetaColumn pk : plan.getPkColumns()) {
+                offsetOrderBy.append(offsetOrderBy.length() > 0 ? ", " : "").append(pk.getColumnName());
+            }
+            offsetQuery = buildTableQuery(tableInfo, null, params, fields)
+                .withFilter(null, offsetOrderBy.toString());
+        } else if (fields != null && fields.length > 0) {
+            for (KeysetPaging.SortKey key : sortKeys) {
+                String propName = key.column.getPropertyName();
+                if (!Arrays.asList(fields).contains(propName)) {
+                    extraProps.add(propName);
+                }
+            }
+        }
+        int chunkSize = exportFetchSize > 0 ? exportFetchSize : 1000;
+        List<DictionaryMapColumn> mapColumns = tableInfo.fetchDictionaryMapColumns(metaDataCache);
+        boolean isClobTable = "C".equals(tableInfo.getTableType());
+        try {
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
+            Connection queryConn = cachedConnection(conn, tableInfo.getDatabaseCode());
+            int rowCount = 0;
+            JSONArray keyValues = null;
+            while (true) {
+                Map<String, Object> queryParams = params;
+                TableQuery query = offsetQuery;
+                if (sortKeys != null) {
+                    queryParams = keyValues == null ? params : new HashMap<>(params);
+                    query = buildSeekQuery(tableInfo, queryParams, fields, sortKeys, keyValues);
+                }
+                String querySql = QueryUtils.buildLimitQuerySQL(query.fetchQuerySql(),
+                    sortKeys == null ? rowCount : 0, chunkSize, false, databaseInfo.getDBType());
+                JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(queryConn, querySql,
+                    queryParams, query.fields);
+                if (objs == null || objs.isEmpty()) {
+                    return rowCount;
+                }
+                if (sortKeys != null) {
+                    keyValues = KeysetPaging.fetchKeyValues(sortKeys, objs.getJSONObject(objs.size() - 1));
+                }
+                for (int i = 0; i < objs.size(); i++) {
+                    Map<String, Object> row = DictionaryMapUtils.mapJsonObject(objs.getJSONObject(i), mapColumns);
+                    for (String propName : extraProps) {
+                        row.remove(propName);
+                    }
+                    rowHandler.handle(isClobTable ? mapPoToDto(row) : row);
+                    // 写出后这一行就不再引用，内存占用只和每批的行数有关
+                    objs.set(i, null);
+                    rowCount++;
+                }
+                if (objs.size() < chunkSize) {
+                    return rowCount;
+                }
+            }
+        } catch (SQLException e) {
+            throw new ObjectException(params, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
+        }
+    }
+
+    private boolean useWindowCount(String tableId) {
+        return windowCountTables.contains("*") || windowCountTables.contains(tableId);
+    }
+
+    /**
+     * PostgreSql、Oracle、SqlServer、DB2 都支持窗口函数，MySql 从 8.0 开始支持（MariaDB 10.2 以上版本号都大于8）
+     */
+    private boolean supportWindowCount(Connection conn, String databaseCode, DBType dbType) throws SQLException {
+        if (dbType == null) {
+            return false;
+        }
+        switch (dbType) {
+            case PostgreSql:
+            case Oracle:
+            case SqlServer:
+            case DB2:
+                return true;
+            case MySql:
+                Boolean support = windowCountSupports.get(databaseCode);
+                if (support == null) {
+                    support = conn.getMetaData().getDatabaseMajorVersion() >= 8;
+                    windowCountSupports.put(databaseCode, support);
+                }
+                return support;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 一条语句同时查询当前页和总行数，总行数作为最后一个字段一起查询，字段类型的转换和普通分页查询一致
+     * @return 当前页数据和总行数，当前页没有数据时总行数为null
+     */
+    private static Pair<JSONArray, Integer> queryPageWithWindowCount(Connection conn, TableQuery query,
+                                                                     Map<String, Object> params, PageDesc pageDesc,
+                                                                     DBType dbType) throws SQLException, IOException {
+        String querySql = QueryUtils.buildLimitQuerySQL(query.fetchWindowCountSql(),
+            pageDesc.getRowStart(), pageDesc.getPageSize(), false, dbType);
+        MetaColumn countField = new MetaColumn();
+        countField.setColumnName(WINDOW_COUNT_COLUMN);
+        countField.setFieldType(FieldType.LONG);
+        TableField[] fields = Arrays.copyOf(query.fields, query.fields.length + 1);
+        fields[query.fields.length] = countField;
+        JSONArray objs = GeneralJsonObjectDao.findObjectsByNamedSql(conn, querySql, params, fields);
+        if (objs == null) {
+            return Pair.of(new JSONArray(), null);
+        }
+        Integer totalRows = null;
+        for (int i = 0; i < objs.size(); i++) {
+            Object rows = objs.getJSONObject(i).remove(countField.getPropertyName());
+            if (totalRows == null) {
+                totalRows = NumberBaseOpt.castObjectToInteger(rows);
+            }
+        }
+        return Pair.of(objs, totalRows);
+    }
+
     @Override
     public JSONArray pageQueryObjects(String tableId, Map<String, Object> params, String [] fields,PageDesc pageDesc) {
         return pageQueryObjects(tableId, null,  params, fields, pageDesc);
@@ -778,22 +1950,26 @@ public class MetaObjectServiceImpl implements MetaObjectService {
 
     @Override
     public JSONArray pageQueryObjects(String tableId, String namedSql, Map<String, Object> params, PageDesc pageDesc) {
-        MetaTable tableInfo = metaDataCache.getTableInfo(tableId);
-        DatabaseInfo databaseInfo = fetchDatabaseInfo(tableInfo.getDatabaseCode());
+        MetaTable tableInfo = fetchTableInfo(tableId);
+        DataSourceDescription dataSource = fetchDataSource(tableInfo.getDatabaseCode());
+        CountPolicy policy = fetchCountPolicy(tableId, params);
         String orderBy = GeneralJsonObjectDao.fetchSelfOrderSql(namedSql, params);
         final String querySql = StringUtils.isBlank(orderBy) ? namedSql
             : QueryUtils.removeOrderBy(namedSql) + " order by "
                 + QueryUtils.cleanSqlStatement(orderBy);
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSource);
             GeneralJsonObjectDao dao = GeneralJsonObjectDao.createJsonObjectDao(conn, tableInfo);
 
             JSONArray objs = dao.findObjectsByNamedSqlAsJSON(
                 querySql, params, null, pageDesc.getPageNo(), pageDesc.getPageSize());
 
-            pageDesc.setTotalRows(
-                NumberBaseOpt.castObjectToInteger(DatabaseAccess.queryTotalRows(conn, querySql, params)));
-            return DictionaryMapUtils.mapJsonArray(objs, tableInfo.fetchDictionaryMapColumns(databaseInfoDao));
+            // 任意语句没有对应的统计信息，ESTIMATED 按 CACHED 处理
+            countTotalRows(tableId, querySql,  params,
+                policy == CountPolicy.ESTIMATED ? CountPolicy.CACHED : policy,
+                pageDesc, objs == null ? 0 : objs.size(),
+                () -> DatabaseAccess.queryTotalRows(conn, querySql, params));
+            return DictionaryMapUtils.mapJsonArray(objs, tableInfo.fetchDictionaryMapColumns(metaDataCache));
         } catch (SQLException | IOException e) {
             throw new ObjectException(params, PersistenceException.DATABASE_OPERATE_EXCEPTION, e);
         }
@@ -0,0 +1,176 @@
+package com.centit.product.metadata.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.centit.product.metadata.service.MetaDataEventTransport;
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 基于UDP组播的事件传输，不依赖外部服务，同一网段内的节点配置相同的组播地址和端口即可
+ * 事件很小（一个表或者数据库的代码），一个数据报就可以发送。
+ * 同一网段的任何主机都可以向组播组发送数据，所以每个数据报都带有用共享密钥计算的 HMAC-SHA256 签名，
+ * 格式为 签名(base64).事件json，签名不对的数据报直接丢弃；重放的旧事件由事件总线按版本号丢弃
+ */
+public class MulticastEventTransport implements MetaDataEventTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(MulticastEventTransport.class);
+
+    private static final int MAX_PACKET_SIZE = 4096;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    /**
+     * HMAC-SHA256 签名 base64 编码后的长度
+     */
+    private static final int SIGNATURE_LENGTH = 44;
+
+    private final InetAddress group;
+    private final int port;
+    private final int timeToLive;
+    private final SecretKeySpec secretKey;
+
+    private volatile MulticastSocket socket;
+    private Thread receiveThread;
+    private volatile boolean running;
+
+    public MulticastEventTransport(String groupAddress, int port, int timeToLive, String secret) throws IOException {
+        if (StringUtils.isBlank(secret)) {
+            throw new IllegalArgumentException("元数据事件组播必须配置共享密钥 metadata.cache.bus.multicast.secret");
+        }
+        this.group = InetAddress.getByName(groupAddress);
+        this.port = port;
+        this.timeToLive = timeToLive;
+        this.secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    private byte[] sign(byte[] data, int offset, int length) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            mac.update(data, offset, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("计算元数据事件签名失败", e);
+        }
+    }
+
+    /**
+     * 事件编码为 签名.json
+     */
+    public byte[] encode(MetaDataChangeEvent event) {
+        byte[] json = JSON.toJSONString(event).getBytes(StandardCharsets.UTF_8);
+        byte[] signature = Base64.getEncoder().encode(sign(json, 0, json.length));
+        byte[] data = Arrays.copyOf(signature, signature.length + 1 + json.length);
+        data[signature.length] = '.';
+        System.arraycopy(json, 0, data, signature.length + 1, json.length);
+        return data;
+    }
+
+    /**
+     * 校验签名后解码事件，签名不对时返回null
+     */
+    public MetaDataChangeEvent decode(byte[] data, int offset, int length) {
+        if (length <= SIGNATURE_LENGTH + 1 || data[offset + SIGNATURE_LENGTH] != '.') {
+            return null;
+        }
+        byte[] signature;
+        try {
+            signature = Base64.getDecoder().decode(Arrays.copyOfRange(data, offset, offset + SIGNATURE_LENGTH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int jsonOffset = offset + SIGNATURE_LENGTH + 1;
+        int jsonLength = length - SIGNATURE_LENGTH - 1;
+        if (!MessageDigest.isEqual(signature, sign(data, jsonOffset, jsonLength))) {
+            return null;
+        }
+        return JSON.parseObject(new String(data, jsonOffset, jsonLength, StandardCharsets.UTF_8),
+            MetaDataChangeEvent.class);
+    }
+
+    @Override
+    public synchronized void start(Consumer<MetaDataChangeEvent> receiver) {
+        MulticastSocket multicastSocket;
+        try {
+            multicastSocket = new MulticastSocket(port);
+            multicastSocket.setTimeToLive(timeToLive);
+            // 同一台机器上的多个节点也需要收到
+            multicastSocket.setLoopbackMode(false);
+            multicastSocket.joinGroup(group);
+        } catch (IOException e) {
+            throw new IllegalStateException("加入元数据事件组播组失败：" + group + ":" + port, e);
+        }
+        socket = multicastSocket;
+        running = true;
+        receiveThread = new Thread(() -> receiveLoop(multicastSocket, receiver), "metadata-event-multicast");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+    private void receiveLoop(MulticastSocket multicastSocket, Consumer<MetaDataChangeEvent> receiver) {
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                multicastSocket.receive(packet);
+                MetaDataChangeEvent event = decode(packet.getData(), packet.getOffset(), packet.getLength());
+                if (event == null) {
+                    logger.warn("丢弃签名校验失败的元数据事件，来源：{}", packet.getSocketAddress());
+                    continue;
+                }
+                receiver.accept(event);
+            } catch (SocketException e) {
+                if (running && !multicastSocket.isClosed()) {
+                    logger.error("元数据事件组播接收出错", e);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("元数据事件组播接收出错", e);
+            }
+        }
+    }
+
+    @Override
+    public void send(MetaDataChangeEvent event) {
+        MulticastSocket multicastSocket = socket;
+        // 停止后（比如容器关闭过程中提交的事务）不再发送，其他节点依靠版本检查补救
+        if (multicastSocket == null) {
+            logger.warn("元数据事件组播已经停止，没有发送：{}", event);
+            return;
+        }
+        byte[] data = encode(event);
+        try {
+            multicastSocket.send(new DatagramPacket(data, data.length, group, port));
+        } catch (IOException e) {
+            logger.error("元数据事件组播发送失败：" + event, e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (socket != null) {
+            try {
+                socket.leaveGroup(group);
+            } catch (IOException e) {
+                logger.warn("退出元数据事件组播组失败", e);
+            }
+            socket.close();
+            socket = null;
+        }
+    }
+}
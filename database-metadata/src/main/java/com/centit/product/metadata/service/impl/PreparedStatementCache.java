@@ -0,0 +1,405 @@
+package com.centit.product.metadata.service.impl;
+
+import org.apache.commons.dbcp2.DelegatingConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按物理连接缓存预编译语句，同一个物理连接上相同的语句只预编译一次，不依赖各数据库驱动自己的语句缓存参数。
+ * DBCP 每次借出连接都会新建一个包装对象，并且在归还时关闭通过包装对象创建的语句，
+ * 所以缓存以最内层的物理连接为key，语句也直接在物理连接上预编译，连接归还后再次借出时可以继续使用。
+ * 返回的是语句的代理，close 时清空参数后放回缓存，而不是真正关闭；
+ * 同一条语句正在使用时（比如嵌套查询）另外预编译一个不缓存的语句。
+ * 每个连接最多缓存 maxSize 条语句，超出后关闭最久没有使用的语句。
+ * 物理连接被连接池销毁时驱动会关闭它的所有语句，缓存中的记录在新连接加入、每隔 PRUNE_INTERVAL_NANOS
+ * 或者获取统计信息时丢弃。
+ */
+public class PreparedStatementCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreparedStatementCache.class);
+
+    /**
+     * 清理已经关闭的连接的最小间隔
+     */
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private volatile int maxSize;
+    /**
+     * 物理连接对象没有重写 equals，按对象本身区分连接
+     */
+    private final Map<Connection, StatementLru> connStatements = new IdentityHashMap<>();
+    /**
+     * 上次清理已经关闭的连接的时间，和 connStatements 使用同一个锁
+     */
+    private long lastPruneTime = System.nanoTime();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder busyCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public PreparedStatementCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 修改每个连接缓存的语句数量，缩小后多余的语句在这个连接下次预编译时关闭
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 获取连接池连接对应的物理连接，不是 DBCP 的连接时返回连接本身
+     */
+    static Connection physicalConnection(Connection conn) {
+        if (conn instanceof DelegatingConnection) {
+            Connection inner = ((DelegatingConnection<?>) conn).getInnermostDelegateInternal();
+            if (inner != null) {
+                return inner;
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * 包装连接，通过包装后的连接预编译的语句（包括 GeneralJsonObjectDao、DatabaseAccess 中的查询）都使用缓存，
+     * 其他方法直接调用原来的连接；包装后的连接只在借出期间使用，不需要关闭
+     * @param conn 数据库连接
+     * @return 使用语句缓存的连接，缓存关闭时返回连接本身
+     */
+    public Connection wrap(Connection conn) {
+        if (maxSize < 1 || conn == null) {
+            return conn;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class}, new ConnectionHandler(conn));
+    }
+
+    /**
+     * 获取预编译语句，调用者和使用 conn.prepareStatement 一样需要关闭语句
+     * @param conn 数据库连接
+     * @param sql 语句
+     * @return 预编译语句
+     * @throws SQLException 预编译失败
+     */
+    public PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        return prepareStatement(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * 获取指定结果集类型的预编译语句，结果集类型不同的语句分别缓存
+     */
+    public PreparedStatement prepareStatement(Connection conn, String sql, int resultSetType,
+                                              int resultSetConcurrency) throws SQLException {
+        if (maxSize < 1) {
+            return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        Connection physical = physicalConnection(conn);
+        String key = resultSetType == ResultSet.TYPE_FORWARD_ONLY
+            && resultSetConcurrency == ResultSet.CONCUR_READ_ONLY ? sql
+            : resultSetType + ":" + resultSetConcurrency + ":" + sql;
+        StatementLru statements = fetchStatements(physical);
+        synchronized (statements) {
+            CachedStatement cached = statements.get(key);
+            if (cached != null) {
+                if (cached.inUse) {
+                    busyCount.increment();
+                    return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+                }
+                if (!cached.statement.isClosed()) {
+                    cached.inUse = true;
+                    hitCount.increment();
+                    return cached.proxy;
+                }
+                statements.remove(key);
+            }
+        }
+        missCount.increment();
+        PreparedStatement stmt = physical.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        CachedStatement cached = new CachedStatement(statements, stmt);
+        synchronized (statements) {
+            // 其他线程已经缓存了同样的语句，这个语句不再缓存
+            if (statements.containsKey(key)) {
+                return stmt;
+            }
+            statements.put(key, cached);
+            statements.trim();
+        }
+        return cached.proxy;
+    }
+
+    private StatementLru fetchStatements(Connection conn) {
+        synchronized (connStatements) {
+            StatementLru statements = connStatements.get(conn);
+            long now = System.nanoTime();
+            // 新连接加入时以及定期清理已经关闭的连接，连接数量受连接池限制，遍历的开销很小
+            if (statements == null || now - lastPruneTime > PRUNE_INTERVAL_NANOS) {
+                removeClosedConnections();
+                lastPruneTime = now;
+                statements = connStatements.get(conn);
+            }
+            if (statements == null) {
+                statements = new StatementLru();
+                connStatements.put(conn, statements);
+            }
+            return statements;
+        }
+    }
+
+    private void removeClosedConnections() {
+        Iterator<Map.Entry<Connection, StatementLru>> it = connStatements.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Connection, StatementLru> entry = it.next();
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException e) {
+                closed = true;
+            }
+            if (closed) {
+                it.remove();
+                entry.getValue().closeAll();
+            }
+        }
+    }
+
+    /**
+     * 关闭所有缓存的语句
+     */
+    public void clear() {
+        List<StatementLru> all;
+        synchronized (connStatements) {
+            all = new ArrayList<>(connStatements.values());
+            connStatements.clear();
+        }
+        for (StatementLru statements : all) {
+            statements.closeAll();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        int connections;
+        int statementCount = 0;
+        synchronized (connStatements) {
+            removeClosedConnections();
+            lastPruneTime = System.nanoTime();
+            connections = connStatements.size();
+            for (StatementLru statements : connStatements.values()) {
+                synchronized (statements) {
+                    statementCount += statements.size();
+                }
+            }
+        }
+        long hits = hitCount.sum();
+        long requests = hits + missCount.sum() + busyCount.sum();
+        Map<String, Object> stats = new LinkedHashMap<>(16);
+        stats.put("maxSize", maxSize);
+        stats.put("connections", connections);
+        stats.put("size", statementCount);
+        stats.put("hitCount", hits);
+        stats.put("missCount", missCount.sum());
+        stats.put("busyCount", busyCount.sum());
+        stats.put("evictionCount", evictionCount.sum());
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) hits / requests);
+        return stats;
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            logger.debug("关闭预编译语句失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 一个连接上缓存的语句，按访问顺序排列
+     */
+    private class StatementLru extends LinkedHashMap<String, CachedStatement> {
+        private static final long serialVersionUID = 1L;
+
+        StatementLru() {
+            super(16, 0.75f, true);
+        }
+
+        /**
+         * 超出 maxSize 时关闭最久没有使用的语句，正在使用的语句等使用者关闭时再真正关闭
+         */
+        void trim() {
+            Iterator<CachedStatement> it = values().iterator();
+            while (size() > maxSize && it.hasNext()) {
+                CachedStatement cached = it.next();
+                it.remove();
+                evictionCount.increment();
+                if (cached.inUse) {
+                    cached.evicted = true;
+                } else {
+                    closeQuietly(cached.statement);
+                }
+            }
+        }
+
+        synchronized void closeAll() {
+            for (CachedStatement cached : values()) {
+                if (cached.inUse) {
+                    cached.evicted = true;
+                } else {
+                    closeQuietly(cached.statement);
+                }
+            }
+            clear();
+        }
+    }
+
+    /**
+     * 包装连接的处理器，只拦截不带自增主键等额外参数的 prepareStatement
+     */
+    private class ConnectionHandler implements InvocationHandler {
+        final Connection conn;
+
+        ConnectionHandler(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("prepareStatement".equals(method.getName())) {
+                if (args.length == 1) {
+                    return PreparedStatementCache.this.prepareStatement(conn, (String) args[0]);
+                }
+                if (args.length == 3) {
+                    return PreparedStatementCache.this.prepareStatement(conn, (String) args[0],
+                        (Integer) args[1], (Integer) args[2]);
+                }
+            } else if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(conn, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class CachedStatement implements InvocationHandler {
+        final StatementLru owner;
+        final PreparedStatement statement;
+        final PreparedStatement proxy;
+        final int initialFetchSize;
+        final int initialMaxRows;
+        final int initialQueryTimeout;
+        final int initialFetchDirection;
+        boolean inUse;
+        boolean evicted;
+        /**
+         * 本次使用中调用过 addBatch，放回时需要清空
+         */
+        boolean batched;
+
+        CachedStatement(StatementLru owner, PreparedStatement statement) throws SQLException {
+            this.owner = owner;
+            this.statement = statement;
+            this.initialFetchSize = statement.getFetchSize();
+            this.initialMaxRows = statement.getMaxRows();
+            this.initialQueryTimeout = statement.getQueryTimeout();
+            this.initialFetchDirection = statement.getFetchDirection();
+            this.inUse = true;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    synchronized (owner) {
+                        if (!inUse) {
+                            return true;
+                        }
+                    }
+                    return statement.isClosed();
+                case "addBatch":
+                    batched = true;
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * 清空参数和批量数据、恢复 fetchSize、maxRows、queryTimeout、fetchDirection 后放回缓存，清理失败的语句直接关闭
+         */
+        private void release() {
+            boolean reusable;
+            try {
+                statement.clearParameters();
+                if (batched) {
+                    statement.clearBatch();
+                    batched = false;
+                }
+                if (statement.getFetchSize() != initialFetchSize) {
+                    statement.setFetchSize(initialFetchSize);
+                }
+                if (statement.getMaxRows() != initialMaxRows) {
+                    statement.setMaxRows(initialMaxRows);
+                }
+                if (statement.getQueryTimeout() != initialQueryTimeout) {
+                    statement.setQueryTimeout(initialQueryTimeout);
+                }
+                if (statement.getFetchDirection() != initialFetchDirection) {
+                    statement.setFetchDirection(initialFetchDirection);
+                }
+                reusable = true;
+            } catch (SQLException e) {
+                reusable = false;
+            }
+            boolean discard;
+            synchronized (owner) {
+                if (!inUse) {
+                    return;
+                }
+                inUse = false;
+                if (!reusable && !evicted) {
+                    owner.values().remove(this);
+                    evicted = true;
+                }
+                discard = evicted;
+            }
+            if (discard) {
+                closeQuietly(statement);
+            }
+        }
+    }
+}
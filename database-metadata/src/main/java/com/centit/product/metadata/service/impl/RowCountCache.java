@@ -0,0 +1,90 @@
+package com.centit.product.metadata.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分页查询总行数的缓存，key 为表、表的修改版本和过滤条件签名；
+ * 表数据修改后版本号增加，旧的缓存条目不再命中，最终被 LRU 淘汰。
+ * 调用者在查询总行数之前取版本号，放入缓存时使用这个版本号，
+ * 查询期间表被修改时结果放在旧版本下，不会被命中。
+ */
+public class RowCountCache {
+
+    private static final class Entry {
+        final int totalRows;
+        final long createTime;
+
+        Entry(int totalRows, long createTime) {
+            this.totalRows = totalRows;
+            this.createTime = createTime;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry> counts;
+    private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    public RowCountCache(long ttlSeconds, final int maxSize) {
+        this.ttlMillis = ttlSeconds * 1000;
+        this.counts = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return 表当前的修改版本
+     */
+    public long currentVersion(String tableId) {
+        AtomicLong version = tableVersions.get(tableId);
+        return version == null ? 0 : version.get();
+    }
+
+    private static String makeKey(String tableId, long version, String signature) {
+        return tableId + '#' + version + '#' + signature;
+    }
+
+    /**
+     * @param version currentVersion 返回的版本号
+     * @return 没有缓存或者已经过期返回null
+     */
+    public Integer get(String tableId, long version, String signature) {
+        String key = makeKey(tableId, version, signature);
+        synchronized (counts) {
+            Entry entry = counts.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - entry.createTime >= ttlMillis) {
+                counts.remove(key);
+                return null;
+            }
+            return entry.totalRows;
+        }
+    }
+
+    /**
+     * @param version 查询总行数之前取得的版本号
+     */
+    public void put(String tableId, long version, String signature, int totalRows) {
+        if (version != currentVersion(tableId)) {
+            return;
+        }
+        String key = makeKey(tableId, version, signature);
+        synchronized (counts) {
+            counts.put(key, new Entry(totalRows, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * 表数据发生修改
+     */
+    public void invalidateTable(String tableId) {
+        tableVersions.computeIfAbsent(tableId, (k) -> new AtomicLong(0)).incrementAndGet();
+    }
+}
@@ -0,0 +1,498 @@
+package com.centit.product.metadata.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * 按权重限制容量的分段LRU缓存（Segmented LRU）
+ * 新加载的条目进入试用段（probation），再次命中后晋升到保护段（protected），
+ * 保护段超出容量时把最久未用的条目降级回试用段，淘汰总是从试用段尾部开始，
+ * 这样偶尔被扫描一次的表不会把常用的表挤出缓存。
+ * 每个条目有独立的写入时间，过期和刷新都是按条目进行的，不会整体失效后集中重载。
+ * 同一个键同时只有一个加载任务，并发的未命中请求等待同一个加载结果；
+ * 需要刷新的条目在后台线程中重新加载，刷新完成前读取的仍然是旧值。
+ * 命中时不加锁，访问记录写入按线程分条的环形缓冲区，在写入、失效或者缓冲区写满时才加锁批量调整链表；
+ * 缓冲区满时丢弃访问记录，只影响 LRU 顺序的精度，不影响正确性。
+ *
+ * @param <K> 键
+ * @param <V> 值
+ */
+public class SegmentedLruCache<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedLruCache.class);
+
+    /**
+     * 保护段占总权重的比例
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * 每条访问缓冲区的长度，必须是2的幂
+     */
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    /**
+     * 访问缓冲区的条数，按CPU数量取2的幂
+     */
+    private static final int READ_BUFFER_STRIPES =
+        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile long writeTime;
+        int weight;
+        boolean inProtected;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * 双向链表，head 为最近使用，tail 为最久未用
+     */
+    private static final class Segment<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+        long weight;
+
+        void addFirst(Node<K, V> node) {
+            node.prev = null;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            }
+            head = node;
+            if (tail == null) {
+                tail = node;
+            }
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final Segment<K, V> probation = new Segment<>();
+    private final Segment<K, V> protectedSegment = new Segment<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * 一条访问缓冲区，多个读线程写入，持有 evictionLock 的线程读出
+     */
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        /**
+         * 只在持有 evictionLock 时修改
+         */
+        volatile long readCounter;
+
+        /**
+         * @return false 表示缓冲区已满，访问记录被丢弃
+         */
+        boolean offer(Node<K, V> node) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= READ_BUFFER_SIZE) {
+                return false;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & READ_BUFFER_MASK), node);
+            }
+            // 竞争失败也当作成功，少记一次访问不影响正确性
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ReadBuffer<K, V>[] readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+
+    /**
+     * 正在加载的键，用于合并同一个键的并发加载
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loadingFutures = new ConcurrentHashMap<>();
+    private final Executor refreshExecutor;
+
+    private final Function<K, V> loader;
+    private final ToIntFunction<V> weigher;
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final long expireAfterWriteMillis;
+    private final long refreshAfterWriteMillis;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder coalescedLoadCount = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+
+    /**
+     * @param loader 数据加载函数，返回 null 表示数据不存在，不缓存
+     * @param weigher 条目权重计算，权重必须大于0
+     * @param maxWeight 缓存的总权重上限
+     * @param expireAfterWriteMinutes 写入后过期时间，分钟，小于等于0表示不过期
+     * @param refreshAfterWriteMinutes 写入后刷新时间，分钟，小于等于0表示不刷新
+     * @param refreshExecutor 后台刷新使用的线程池
+     */
+    public SegmentedLruCache(Function<K, V> loader, ToIntFunction<V> weigher, long maxWeight,
+                             long expireAfterWriteMinutes, long refreshAfterWriteMinutes,
+                             Executor refreshExecutor) {
+        this.loader = loader;
+        this.refreshExecutor = refreshExecutor;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight < 1 ? 1 : maxWeight;
+        this.maxProtectedWeight = (long) (this.maxWeight * PROTECTED_RATIO);
+        this.expireAfterWriteMillis = TimeUnit.MINUTES.toMillis(expireAfterWriteMinutes);
+        this.refreshAfterWriteMillis = TimeUnit.MINUTES.toMillis(refreshAfterWriteMinutes);
+        this.data = new ConcurrentHashMap<>(256);
+        for (int i = 0; i < READ_BUFFER_STRIPES; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return expireAfterWriteMillis > 0 && now - node.writeTime >= expireAfterWriteMillis;
+    }
+
+    private boolean needRefresh(Node<K, V> node, long now) {
+        return refreshAfterWriteMillis > 0 && now - node.writeTime >= refreshAfterWriteMillis;
+    }
+
+    private int weighValue(V value) {
+        int weight = weigher.applyAsInt(value);
+        return weight < 1 ? 1 : weight;
+    }
+
+    private V loadValue(K key) {
+        long startTime = System.nanoTime();
+        try {
+            V value = loader.apply(key);
+            loadSuccessCount.increment();
+            return value;
+        } catch (RuntimeException e) {
+            loadFailureCount.increment();
+            throw e;
+        } finally {
+            totalLoadTime.add(System.nanoTime() - startTime);
+        }
+    }
+
+    public V get(K key) {
+        long now = System.currentTimeMillis();
+        Node<K, V> node = data.get(key);
+        if (node != null && !isExpired(node, now)) {
+            hitCount.increment();
+            onAccess(node);
+            if (needRefresh(node, now)) {
+                refreshAsync(key, node.value);
+            }
+            return node.value;
+        }
+        missCount.increment();
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = loadingFutures.putIfAbsent(key, future);
+        if (running != null) {
+            coalescedLoadCount.increment();
+            return waitFor(running);
+        }
+        return runLoad(key, future);
+    }
+
+    private V waitFor(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 执行加载并发布结果，加载期间如果这个键被失效，结果只返回给等待者，不放入缓存
+     */
+    private V runLoad(K key, CompletableFuture<V> future) {
+        V value;
+        try {
+            value = loadValue(key);
+        } catch (RuntimeException e) {
+            loadingFutures.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            if (loadingFutures.remove(key, future)) {
+                if (value != null) {
+                    putNode(key, value);
+                } else {
+                    removeNode(key);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        future.complete(value);
+        return value;
+    }
+
+    /**
+     * @param staleValue 当前的旧值，线程池拒绝时作为刷新结果交给等待同一个加载的线程
+     */
+    private void refreshAsync(K key, V staleValue) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        if (loadingFutures.putIfAbsent(key, future) != null) {
+            return;
+        }
+        refreshCount.increment();
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    runLoad(key, future);
+                } catch (RuntimeException e) {
+                    logger.error("后台刷新缓存失败：" + key, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 本次不刷新，保留旧值，下次访问时再尝试
+            loadingFutures.remove(key, future);
+            future.complete(staleValue);
+            logger.warn("后台刷新线程池已满，缓存暂不刷新：" + key);
+        }
+    }
+
+    /**
+     * 只查看缓存，不加载也不计入命中统计
+     */
+    public V getIfPresent(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null || isExpired(node, System.currentTimeMillis())) {
+            return null;
+        }
+        return node.value;
+    }
+
+    public void put(K key, V value) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            putNode(key, value);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void putNode(K key, V value) {
+        Node<K, V> node = new Node<>(key, value, weighValue(value), System.currentTimeMillis());
+        Node<K, V> old = data.put(key, node);
+        if (old != null) {
+            unlink(old);
+        }
+        probation.addFirst(node);
+        evict();
+    }
+
+    private void removeNode(K key) {
+        Node<K, V> old = data.remove(key);
+        if (old != null) {
+            unlink(old);
+        }
+    }
+
+    public void invalidate(K key) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            loadingFutures.remove(key);
+            removeNode(key);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 让所有满足条件的条目失效
+     * @param predicate 条件
+     * @return 失效的条目数量
+     */
+    public int invalidateIf(Predicate<V> predicate) {
+        int count = 0;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            // 正在加载的值无法判断是否满足条件，全部放弃
+            loadingFutures.clear();
+            for (Node<K, V> node : data.values()) {
+                if (predicate.test(node.value) && data.remove(node.key, node)) {
+                    unlink(node);
+                    count++;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return count;
+    }
+
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            loadingFutures.clear();
+            data.clear();
+            probation.head = probation.tail = null;
+            probation.weight = 0;
+            protectedSegment.head = protectedSegment.tail = null;
+            protectedSegment.weight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.inProtected) {
+            protectedSegment.remove(node);
+        } else {
+            probation.remove(node);
+        }
+    }
+
+    /**
+     * 记录一次命中，缓冲区满时尝试加锁批量处理，锁被占用就丢弃这次记录
+     */
+    private void onAccess(Node<K, V> node) {
+        int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+        if (!readBuffers[stripe].offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按记录顺序处理所有访问缓冲区，调用时必须持有 evictionLock
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> readBuffer : readBuffers) {
+            long head = readBuffer.readCounter;
+            long tail = readBuffer.writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                Node<K, V> node = readBuffer.buffer.get(index);
+                // 写入线程已经占位但还没有写入，下次再处理
+                if (node == null) {
+                    break;
+                }
+                readBuffer.buffer.lazySet(index, null);
+                applyAccess(node);
+            }
+            readBuffer.readCounter = head;
+        }
+    }
+
+    private void applyAccess(Node<K, V> node) {
+        // 已经被替换或者淘汰的节点不再调整位置
+        if (data.get(node.key) != node) {
+            return;
+        }
+        unlink(node);
+        node.inProtected = true;
+        protectedSegment.addFirst(node);
+        while (protectedSegment.weight > maxProtectedWeight && protectedSegment.tail != null
+            && protectedSegment.tail != node) {
+            Node<K, V> demoted = protectedSegment.tail;
+            protectedSegment.remove(demoted);
+            demoted.inProtected = false;
+            probation.addFirst(demoted);
+        }
+    }
+
+    private void evict() {
+        while (probation.weight + protectedSegment.weight > maxWeight) {
+            Node<K, V> victim = probation.tail != null ? probation.tail : protectedSegment.tail;
+            if (victim == null || data.size() <= 1) {
+                return;
+            }
+            unlink(victim);
+            data.remove(victim.key, victim);
+            evictionCount.increment();
+        }
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return probation.weight + protectedSegment.weight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return 缓存统计信息，用于根据实际的表数量调整缓存容量
+     */
+    public Map<String, Object> stats() {
+        long hits = hitCount.sum();
+        long misses = missCount.sum();
+        long loads = loadSuccessCount.sum() + loadFailureCount.sum();
+        long loadTime = totalLoadTime.sum();
+        Map<String, Object> stats = new LinkedHashMap<>(16);
+        stats.put("size", size());
+        stats.put("weightedSize", weightedSize());
+        stats.put("maxWeight", maxWeight);
+        stats.put("hitCount", hits);
+        stats.put("missCount", misses);
+        stats.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        stats.put("loadSuccessCount", loadSuccessCount.sum());
+        stats.put("loadFailureCount", loadFailureCount.sum());
+        stats.put("totalLoadTimeMillis", TimeUnit.NANOSECONDS.toMillis(loadTime));
+        stats.put("averageLoadPenaltyMillis", loads == 0 ? 0.0 : loadTime / 1000000.0 / loads);
+        stats.put("evictionCount", evictionCount.sum());
+        stats.put("coalescedLoadCount", coalescedLoadCount.sum());
+        stats.put("refreshCount", refreshCount.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,144 @@
+package com.centit.product.metadata.service.impl;
+
+import com.centit.support.algorithm.NumberBaseOpt;
+import com.centit.support.database.jsonmaptable.JsonObjectDao;
+import com.centit.support.database.utils.DBType;
+import com.centit.support.database.utils.DatabaseAccess;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按块分配序列值，每次从数据库序列取一个值后在内存中分配一段，减少取序列的次数。
+ * 两种分块方式：
+ * 1. 序列的步长（INCREMENT BY）大于1时，nextval 返回 v 表示 [v, v + 步长) 都归当前节点使用，
+ *    步长从数据库系统表中读取，不需要单独配置，和其他直接使用 nextval 的程序也不会冲突；
+ *    每个序列的步长在进程中只读取一次，DBA 修改步长后所有节点都需要重启，
+ *    特别是调小步长时，没有重启的节点仍按原来的步长分配，会和其他节点重复；
+ * 2. 配置了 hi/lo 块大小 n 的序列，nextval 返回 v 表示 [v * n, v * n + n) 归当前节点使用，
+ *    适用于不能修改步长的序列，这个序列不能再被其他程序直接使用。
+ * 每个值都来自数据库序列的一次 nextval，多个节点之间不会重复；块内用 AtomicLong 分配，不加锁，
+ * 块用完时只有一个线程去数据库取下一块。序列值本身不受事务控制，回滚或重启后块内未用的值会跳过。
+ */
+public class SequenceAllocator {
+
+    private static final class Block {
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private static final class SequenceState {
+        final long increment;
+        final long hiloSize;
+        volatile Block block;
+
+        SequenceState(long increment, long hiloSize) {
+            this.increment = increment;
+            this.hiloSize = hiloSize;
+        }
+    }
+
+    private final ConcurrentHashMap<String, SequenceState> sequences = new ConcurrentHashMap<>();
+    /**
+     * 序列名（大写）对应的 hi/lo 块大小
+     */
+    private final Map<String, Integer> hiloSizes;
+
+    public SequenceAllocator(Map<String, Integer> hiloSizes) {
+        this.hiloSizes = hiloSizes == null ? Collections.emptyMap() : hiloSizes;
+    }
+
+    /**
+     * 获取序列的下一个值
+     * @param databaseCode 数据库代码，不同数据库的同名序列分别分配
+     * @param sequenceName 序列名
+     * @param sqlDialect 当前连接上的数据库方言，块用完时用它取序列值
+     * @param dbType 数据库类型，用于读取序列步长
+     * @return 序列值
+     * @throws SQLException 取序列失败
+     * @throws IOException 取序列失败
+     */
+    public Long nextValue(String databaseCode, String sequenceName, JsonObjectDao sqlDialect, DBType dbType)
+        throws SQLException, IOException {
+        String key = databaseCode + ':' + StringUtils.upperCase(sequenceName);
+        SequenceState state = sequences.get(key);
+        if (state == null) {
+            Integer hiloSize = hiloSizes.get(StringUtils.upperCase(sequenceName));
+            state = new SequenceState(fetchIncrement(sequenceName, sqlDialect, dbType),
+                hiloSize == null || hiloSize < 2 ? 1 : hiloSize);
+            SequenceState old = sequences.putIfAbsent(key, state);
+            if (old != null) {
+                state = old;
+            }
+        }
+        if (state.increment < 2 && state.hiloSize < 2) {
+            return sqlDialect.getSequenceNextValue(sequenceName);
+        }
+        while (true) {
+            Block block = state.block;
+            if (block != null) {
+                long value = block.next.getAndIncrement();
+                if (value < block.end) {
+                    return value;
+                }
+            }
+            synchronized (state) {
+                // 其他线程已经取到了新块
+                if (state.block == block) {
+                    Long value = sqlDialect.getSequenceNextValue(sequenceName);
+                    if (value == null) {
+                        return null;
+                    }
+                    long start = state.hiloSize > 1 ? value * state.hiloSize : value;
+                    state.block = new Block(start, start + (state.hiloSize > 1 ? state.hiloSize : state.increment));
+                }
+            }
+        }
+    }
+
+    /**
+     * 从系统表读取序列步长，不支持（MySql 用函数模拟的序列）或者系统表中没有这个序列时按1处理。
+     * 查询在业务事务中执行，出错时直接抛出：PostgreSql 中出错的语句会使整个事务失败，不能当作步长为1继续
+     */
+    private static long fetchIncrement(String sequenceName, JsonObjectDao sqlDialect, DBType dbType)
+        throws SQLException, IOException {
+        if (dbType == null) {
+            return 1;
+        }
+        String name = sequenceName;
+        int n = name.lastIndexOf('.');
+        if (n >= 0) {
+            name = name.substring(n + 1);
+        }
+        String sql;
+        switch (dbType) {
+            case Oracle:
+                sql = "select increment_by from user_sequences where sequence_name = upper(?)";
+                break;
+            case PostgreSql:
+                sql = "select increment from information_schema.sequences where sequence_name = lower(?)";
+                break;
+            case SqlServer:
+                sql = "select cast(increment as bigint) from sys.sequences where name = ?";
+                break;
+            case DB2:
+                sql = "select increment from syscat.sequences where seqname = upper(?)";
+                break;
+            default:
+                return 1;
+        }
+        Long increment = NumberBaseOpt.castObjectToLong(
+            DatabaseAccess.fetchScalarObject(sqlDialect.findObjectsBySql(sql, new Object[]{name})));
+        return increment == null || increment < 1 ? 1 : increment;
+    }
+}
@@ -20,18 +20,29 @@ public class SqlDictionaryMapSupplier implements Supplier<Map<String, String>> {
 
     private static final Logger logger = LoggerFactory.getLogger(SqlDictionaryMapSupplier.class);
 
-    private DatabaseInfo databaseInfo;
+    private Supplier<DataSourceDescription> dataSourceSupplier;
     private String sqlSen;
 
     public SqlDictionaryMapSupplier(DatabaseInfo databaseInfo, String sqlSen){
-        this.databaseInfo = databaseInfo;
+        DataSourceDescription dataSource = DataSourceDescription.valueOf(databaseInfo);
+        this.dataSourceSupplier = () -> dataSource;
+        this.sqlSen = sqlSen;
+    }
+
+    /**
+     * 每次刷新字典时从缓存获取数据源，数据库连接信息修改后不需要重新注册字典
+     * @param dataSourceSupplier 数据源
+     * @param sqlSen 查询语句
+     */
+    public SqlDictionaryMapSupplier(Supplier<DataSourceDescription> dataSourceSupplier, String sqlSen){
+        this.dataSourceSupplier = dataSourceSupplier;
         this.sqlSen = sqlSen;
     }
 
     @Override
     public Map<String, String> get() {
         try {
-            Connection conn = ConnectThreadHolder.fetchConnect(DataSourceDescription.valueOf(databaseInfo));
+            Connection conn = ConnectThreadHolder.fetchConnect(dataSourceSupplier.get());
             List<Object[]> datas = DatabaseAccess.findObjectsBySql(conn, sqlSen);
             if(datas!=null){
                 Map<String, String> dictionary = new HashMap<>(datas.size()*5/4+1);
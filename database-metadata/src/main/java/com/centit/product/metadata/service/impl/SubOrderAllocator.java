@@ -0,0 +1,223 @@
+package com.centit.product.metadata.service.impl;
+
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaRelDetail;
+import com.centit.product.metadata.po.MetaRelation;
+import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.po.MetaTableAccessPlan;
+import com.centit.product.metadata.service.MetaDataCache;
+import com.centit.support.algorithm.NumberBaseOpt;
+import com.centit.support.common.ObjectException;
+import com.centit.support.database.jsonmaptable.GeneralJsonObjectDao;
+import com.centit.support.database.jsonmaptable.JsonObjectDao;
+import com.centit.support.database.utils.DBType;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.database.utils.PersistenceException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一个批次内分配 SUB_ORDER（"O"）主键，每个父键（除当前字段外的其他主键）只查询一次数据库中的最大值，
+ * 之后在内存中依次加一。批次中已经指定了值的行先用 reserve 登记，分配的值总是比它们大。
+ * 查询最大值时加锁，并发保存同一个父对象的事务排队分配：MySql、SqlServer 锁定范围，新的父键也能锁住；
+ * Oracle、PostgreSql、DB2 只能锁定已有的行，父键下还没有子行时什么也锁不住，
+ * 所以先通过父子关联锁定父表中对应的行（select ... for update）。
+ * 没有和父表主键关联的表只锁定已有的子行，两个事务同时给新的父键分配时后提交的事务会违反主键约束而失败，需要重新提交。
+ * 对象只在一个批次（一次保存请求）中使用，不是线程安全的。
+ */
+public class SubOrderAllocator {
+
+    private static final class Counter {
+        long maxOrder;
+        boolean loaded;
+    }
+
+    private final DBType dbType;
+    /**
+     * 用于查找父表，为null时不锁定父表的行
+     */
+    private final MetaDataCache metaDataCache;
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    public SubOrderAllocator(DBType dbType, MetaDataCache metaDataCache) {
+        this.dbType = dbType;
+        this.metaDataCache = metaDataCache;
+    }
+
+    /**
+     * 登记批次中已经指定的 SUB_ORDER 值
+     */
+    public void reserve(MetaTable metaTable, Map<String, Object> object) {
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        MetaColumn[] generatorColumns = plan.getGeneratorColumns();
+        String[] generatorProperties = plan.getGeneratorProperties();
+        for (int i = 0; i < generatorColumns.length; i++) {
+            if (!"O".equals(generatorColumns[i].getAutoCreateRule())) {
+                continue;
+            }
+            Long order = NumberBaseOpt.castObjectToLong(object.get(generatorProperties[i]));
+            if (order != null) {
+                Counter counter = fetchCounter(metaTable, generatorProperties[i], object);
+                counter.maxOrder = Math.max(counter.maxOrder, order);
+            }
+        }
+    }
+
+    /**
+     * 分配下一个 SUB_ORDER 值，父键第一次出现时查询数据库中的最大值
+     */
+    public Long nextValue(MetaTable metaTable, MetaColumn field, String propertyName,
+                          Map<String, Object> object, JsonObjectDao sqlDialect) throws SQLException, IOException {
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        if (plan.countPkColumn() < 2 || !field.isPrimaryKey()) {
+            throw new ObjectException(PersistenceException.ORM_METADATA_EXCEPTION,
+                "主键生成规则SUB_ORDER必须用于复合主键表中，并且只能用于整型字段！");
+        }
+        Counter counter = fetchCounter(metaTable, propertyName, object);
+        if (!counter.loaded) {
+            Long maxOrder = queryMaxOrder(metaTable, field, propertyName, object, sqlDialect);
+            if (maxOrder != null) {
+                counter.maxOrder = Math.max(counter.maxOrder, maxOrder);
+            }
+            counter.loaded = true;
+        }
+        counter.maxOrder++;
+        return counter.maxOrder;
+    }
+
+    private Counter fetchCounter(MetaTable metaTable, String propertyName, Map<String, Object> object) {
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        String[] pkProperties = plan.getPkProperties();
+        Object[] parentKey = new Object[pkProperties.length + 1];
+        parentKey[0] = metaTable.getTableId() + '.' + propertyName;
+        for (int j = 0; j < pkProperties.length; j++) {
+            if (!StringUtils.equals(pkProperties[j], propertyName)) {
+                parentKey[j + 1] = object.get(pkProperties[j]);
+            }
+        }
+        return counters.computeIfAbsent(MetaObjectBatchWriter.makeKey(parentKey), (key) -> new Counter());
+    }
+
+    private Long queryMaxOrder(MetaTable metaTable, MetaColumn field, String propertyName,
+                               Map<String, Object> object, JsonObjectDao sqlDialect) throws SQLException, IOException {
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        String[] pkProperties = plan.getPkProperties();
+        StringBuilder filter = new StringBuilder();
+        Object[] pkValues = new Object[pkColumns.length - 1];
+        int pki = 0;
+        for (int j = 0; j < pkColumns.length; j++) {
+            if (!StringUtils.equals(pkProperties[j], propertyName)) {
+                if (pki > 0) {
+                    filter.append(" and ");
+                }
+                filter.append(pkColumns[j].getColumnName()).append(" = ?");
+                pkValues[pki] = object.get(pkProperties[j]);
+                pki++;
+            }
+        }
+        String column = field.getColumnName();
+        String tableName = metaTable.getTableName();
+        boolean aggregate = true;
+        String sql;
+        if (dbType == DBType.MySql) {
+            sql = "select max(" + column + ") from " + tableName + " where " + filter + " for update";
+        } else if (dbType == DBType.SqlServer) {
+            sql = "select max(" + column + ") from " + tableName + " with (updlock, holdlock) where " + filter;
+        } else if (dbType == DBType.Oracle || dbType == DBType.PostgreSql || dbType == DBType.DB2) {
+            lockParentRow(metaTable, propertyName, object, sqlDialect);
+            // 这几个数据库的聚合查询不能加 for update，锁定已有的行后在内存中求最大值
+            sql = "select " + column + " from " + tableName + " where " + filter + " for update";
+            aggregate = false;
+        } else {
+            sql = "select max(" + column + ") from " + tableName + " where " + filter;
+        }
+        List<Object[]> rows = sqlDialect.findObjectsBySql(sql, pkValues);
+        Long maxOrder = null;
+        if (rows != null) {
+            for (Object[] row : rows) {
+                Long order = row == null || row.length == 0 ? null : NumberBaseOpt.castObjectToLong(row[0]);
+                if (order != null && (maxOrder == null || order > maxOrder)) {
+                    maxOrder = order;
+                }
+                if (aggregate) {
+                    break;
+                }
+            }
+        }
+        return maxOrder;
+    }
+
+    /**
+     * 锁定父表中对应的行，关联的子表字段必须都是当前字段以外的主键，并且关联到父表的全部主键；
+     * 找到一个可以锁定的父表就够了
+     */
+    private void lockParentRow(MetaTable metaTable, String propertyName, Map<String, Object> object,
+                                  JsonObjectDao sqlDialect) throws SQLException, IOException {
+        if (metaDataCache == null) {
+            return;
+        }
+        List<MetaRelation> parents = metaTable.getParents();
+        if (parents == null || parents.isEmpty()) {
+            MetaTable withParents = metaDataCache.getTableInfoWithParents(metaTable.getTableId());
+            parents = withParents == null ? null : withParents.getParents();
+        }
+        if (parents == null) {
+            return;
+        }
+        for (MetaRelation relation : parents) {
+            List<MetaRelDetail> details = relation.getRelationDetails();
+            if (details == null || details.isEmpty() || !isParentKey(metaTable, propertyName, details)) {
+                continue;
+            }
+            MetaTable parentTable = metaDataCache.getTableInfo(relation.getParentTableId());
+            Map<String, Object> parentPk = relation.fetchParentPk(object);
+            if (parentTable == null || parentPk == null
+                || !GeneralJsonObjectDao.checkHasAllPkColumns(parentTable, parentPk)) {
+                continue;
+            }
+            StringBuilder sql = new StringBuilder("select 1 from ").append(parentTable.getTableName())
+                .append(" where ");
+            Object[] values = new Object[details.size()];
+            for (int i = 0; i < details.size(); i++) {
+                String parentColumn = details.get(i).getParentColumnCode();
+                if (i > 0) {
+                    sql.append(" and ");
+                }
+                sql.append(parentColumn).append(" = ?");
+                values[i] = parentPk.get(FieldType.mapPropName(parentColumn));
+            }
+            sql.append(" for update");
+            sqlDialect.findObjectsBySql(sql.toString(), values);
+            return;
+        }
+    }
+
+    /**
+     * 关联的子表字段是否都是除当前字段外的主键
+     */
+    private static boolean isParentKey(MetaTable metaTable, String propertyName, List<MetaRelDetail> details) {
+        MetaTableAccessPlan plan = metaTable.fetchAccessPlan();
+        MetaColumn[] pkColumns = plan.getPkColumns();
+        String[] pkProperties = plan.getPkProperties();
+        for (MetaRelDetail detail : details) {
+            boolean found = false;
+            for (int j = 0; j < pkColumns.length; j++) {
+                if (!StringUtils.equals(pkProperties[j], propertyName)
+                    && StringUtils.equalsIgnoreCase(pkColumns[j].getColumnName(), detail.getChildColumnCode())) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,41 @@
+package com.centit.product.metadata.vo;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * 分页查询时总行数的获取方式
+ */
+public enum CountPolicy {
+    /**
+     * 每次都执行 count 查询
+     */
+    EXACT,
+    /**
+     * 不查询总行数，只根据当前页是否满页判断是否还有下一页
+     */
+    SKIP,
+    /**
+     * 相同的过滤条件在一段时间内使用缓存的总行数，表数据通过本服务修改后缓存失效
+     */
+    CACHED,
+    /**
+     * 没有过滤条件时使用数据库的统计信息，有过滤条件时按 CACHED 处理
+     */
+    ESTIMATED;
+
+    /**
+     * @param policy 名称，不区分大小写
+     * @param defaultPolicy 名称为空或者不正确时返回的值
+     */
+    public static CountPolicy valueOf(String policy, CountPolicy defaultPolicy) {
+        if (StringUtils.isBlank(policy)) {
+            return defaultPolicy;
+        }
+        for (CountPolicy value : values()) {
+            if (value.name().equalsIgnoreCase(policy.trim())) {
+                return value;
+            }
+        }
+        return defaultPolicy;
+    }
+}
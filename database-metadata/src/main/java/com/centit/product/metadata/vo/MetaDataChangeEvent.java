@@ -0,0 +1,62 @@
+package com.centit.product.metadata.vo;
+
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.Data;
+
+/**
+ * 元数据变更事件，元数据写入后发布，用于让缓存中对应的表元数据失效
+ */
+@Data
+public class MetaDataChangeEvent implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 单个表的元数据（表、字段、关联关系）发生变更，code 为 tableId
+     */
+    public static final String CHANGE_TYPE_TABLE = "T";
+    /**
+     * 整个数据库的元数据发生变更（比如同步数据库），code 为 databaseCode
+     */
+    public static final String CHANGE_TYPE_DATABASE = "D";
+    /**
+     * 数据库连接信息（地址、用户、密码）发生变更，code 为 databaseCode
+     */
+    public static final String CHANGE_TYPE_DATA_SOURCE = "S";
+
+    private String changeType;
+
+    private String code;
+
+    /**
+     * 事件版本号，同一个节点上单调递增
+     */
+    private long version;
+
+    /**
+     * 发布事件的节点，集群广播时用来忽略自己发出的事件
+     */
+    private String sourceNode;
+
+    public MetaDataChangeEvent() {
+    }
+
+    public MetaDataChangeEvent(String changeType, String code) {
+        this.changeType = changeType;
+        this.code = code;
+    }
+
+    @JSONField(serialize = false)
+    public boolean isTableChanged() {
+        return CHANGE_TYPE_TABLE.equals(changeType);
+    }
+
+    @JSONField(serialize = false)
+    public boolean isDatabaseChanged() {
+        return CHANGE_TYPE_DATABASE.equals(changeType);
+    }
+
+    @JSONField(serialize = false)
+    public boolean isDataSourceChanged() {
+        return CHANGE_TYPE_DATA_SOURCE.equals(changeType);
+    }
+}
@@ -0,0 +1,25 @@
+package com.centit.product.metadata.vo;
+
+import com.centit.support.database.utils.PageDesc;
+
+/**
+ * 分页信息，增加总行数是否精确的标记，
+ * 总行数不精确时界面不应该依赖它计算总页数
+ */
+public class MetaPageDesc extends PageDesc {
+    private static final long serialVersionUID = 1L;
+
+    private boolean totalRowsExact = true;
+
+    public MetaPageDesc() {
+        super();
+    }
+
+    public boolean isTotalRowsExact() {
+        return totalRowsExact;
+    }
+
+    public void setTotalRowsExact(boolean totalRowsExact) {
+        this.totalRowsExact = totalRowsExact;
+    }
+}
@@ -0,0 +1,26 @@
+package com.centit.product.metadata.vo;
+
+import com.alibaba.fastjson.JSONArray;
+import lombok.Data;
+
+/**
+ * 按游标分页的查询结果
+ */
+@Data
+public class SeekPageResult implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private JSONArray objList;
+
+    private int pageSize;
+
+    /**
+     * 下一页的游标，没有下一页时为null
+     */
+    private String nextPageToken;
+
+    /**
+     * true 表示按键值定位，false 表示排序方式不支持按键值定位，退回到了 offset 分页
+     */
+    private boolean seekMode;
+}
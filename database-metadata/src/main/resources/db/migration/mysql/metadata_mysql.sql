@@ -6,6 +6,8 @@ drop table if exists F_MD_REL_DETAIL;
 
 drop table if exists F_MD_TABLE;
 
+drop table if exists F_MD_VERSION;
+
 create table F_MD_COLUMN
 (
    TABLE_ID                varchar(64) not null,
@@ -69,3 +71,14 @@ create table F_MD_TABLE
 
 alter table F_MD_TABLE comment '状态分为 系统/查询/更新 系统，不可以做任何操作 查询，仅用于通用查询模块，不可以更新';
 
+create table F_MD_VERSION
+(
+   VERSION_ID             varchar(32) not null,
+   VERSION_NO             bigint not null,
+   UPDATE_DATE            datetime,
+   primary key (VERSION_ID)
+);
+
+alter table F_MD_VERSION comment '元数据版本，元数据每次修改版本号加一，用于判断缓存和快照是否过期';
+
+insert into F_MD_VERSION (VERSION_ID, VERSION_NO, UPDATE_DATE) values ('METADATA', 0, now());
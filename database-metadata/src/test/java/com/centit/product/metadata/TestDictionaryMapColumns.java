@@ -0,0 +1,94 @@
+package com.centit.product.metadata;
+
+import com.centit.framework.components.CodeRepositoryUtil;
+import com.centit.framework.core.dao.DictionaryMapColumn;
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaTable;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.security.Md5Encoder;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 检查数据字典映射字段的缓存：重复获取返回同一个解析结果，字段变化后重新解析，被清除的扩展字典重新注册
+ */
+public class TestDictionaryMapColumns {
+
+    private static final String JSON_DICTIONARY = "{\"T\":\"是\",\"F\":\"否\"}";
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static MetaColumn createColumn(String columnName, String referenceType, String referenceData) {
+        MetaColumn column = new MetaColumn();
+        column.setTableId("T_DICT");
+        column.setColumnName(columnName);
+        column.setFieldType(FieldType.STRING);
+        column.setReferenceType(referenceType);
+        column.setReferenceData(referenceData);
+        return column;
+    }
+
+    private static List<MetaColumn> createColumns() {
+        List<MetaColumn> columns = new ArrayList<>();
+        columns.add(createColumn("UNIT_CODE", "1", "{\"UNIT_CODE\":\"unitName\",\"USER_CODE\":\"userName\"}"));
+        columns.add(createColumn("IS_VALID", "2", JSON_DICTIONARY));
+        columns.add(createColumn("REMARK", null, null));
+        return columns;
+    }
+
+    /**
+     * CodeRepositoryUtil 没有删除扩展字典的方法，从它的静态字典表中移除来模拟字典被清除
+     */
+    private static boolean removeExtendedDictionary(String catalogCode) throws IllegalAccessException {
+        boolean removed = false;
+        for (Field field : CodeRepositoryUtil.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) || !Map.class.isAssignableFrom(field.getType())) {
+                continue;
+            }
+            field.setAccessible(true);
+            Map<?, ?> map = (Map<?, ?>) field.get(null);
+            if (map != null && map.remove(catalogCode) != null) {
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        MetaTable table = new MetaTable();
+        table.setTableId("T_DICT");
+        table.setDatabaseCode("DICT");
+        table.setMdColumns(createColumns());
+
+        // 重复获取返回同一个解析结果
+        List<DictionaryMapColumn> mapColumns = table.fetchDictionaryMapColumns(null);
+        check(mapColumns != null && mapColumns.size() == 3, "字典字段数量不对：" + mapColumns);
+        check(table.fetchDictionaryMapColumns(null) == mapColumns, "重复获取时重新解析了字典字段");
+
+        // 替换字段列表后重新解析
+        List<MetaColumn> columns = createColumns();
+        columns.add(createColumn("OPT_TYPE", "1", "optType"));
+        table.setMdColumns(columns);
+        List<DictionaryMapColumn> rebuilt = table.fetchDictionaryMapColumns(null);
+        check(rebuilt != mapColumns && rebuilt.size() == 4, "替换字段后没有重新解析：" + rebuilt);
+        check(table.fetchDictionaryMapColumns(null) == rebuilt, "重新解析后没有缓存");
+
+        // 扩展字典被清除后重新注册，解析结果不变
+        String catalogCode = Md5Encoder.encodeBase64(JSON_DICTIONARY, true);
+        check(CodeRepositoryUtil.hasExtendedDictionary(catalogCode), "JSON字典没有注册");
+        check(removeExtendedDictionary(catalogCode), "没有找到注册的JSON字典");
+        check(!CodeRepositoryUtil.hasExtendedDictionary(catalogCode), "JSON字典没有被清除");
+        check(table.fetchDictionaryMapColumns(null) == rebuilt, "扩展字典重新注册时重新解析了字典字段");
+        check(CodeRepositoryUtil.hasExtendedDictionary(catalogCode), "被清除的JSON字典没有重新注册");
+
+        System.out.println("数据字典映射字段测试通过");
+    }
+}
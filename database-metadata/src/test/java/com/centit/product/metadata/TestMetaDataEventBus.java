@@ -0,0 +1,84 @@
+package com.centit.product.metadata;
+
+import com.alibaba.fastjson.JSON;
+import com.centit.product.metadata.service.impl.LoopbackEventTransport;
+import com.centit.product.metadata.service.impl.MetaDataEventBusImpl;
+import com.centit.product.metadata.service.impl.MulticastEventTransport;
+import com.centit.product.metadata.vo.MetaDataChangeEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 用 LoopbackEventTransport 在一个进程中模拟两个节点，检查事件的分发、去重、停止后的发送和组播签名校验
+ */
+public class TestMetaDataEventBus {
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoopbackEventTransport transportA = new LoopbackEventTransport();
+        MetaDataEventBusImpl nodeA = new MetaDataEventBusImpl(transportA);
+        MetaDataEventBusImpl nodeB = new MetaDataEventBusImpl(new LoopbackEventTransport());
+        List<MetaDataChangeEvent> receivedA = new CopyOnWriteArrayList<>();
+        List<MetaDataChangeEvent> receivedB = new CopyOnWriteArrayList<>();
+        nodeA.addListener(receivedA::add);
+        nodeB.addListener(receivedB::add);
+        nodeA.init();
+        nodeB.init();
+        try {
+            // 本节点直接分发一次，广播回来的自己的事件被忽略
+            nodeA.publishTableChanged("T1");
+            check(receivedA.size() == 1, "本节点应该收到1个事件，实际：" + receivedA.size());
+            check(receivedB.size() == 1 && "T1".equals(receivedB.get(0).getCode()),
+                "另一个节点应该收到T1的事件，实际：" + receivedB);
+
+            // 重复到达的事件丢弃
+            MetaDataChangeEvent first = receivedB.get(0);
+            transportA.send(first);
+            check(receivedB.size() == 1, "重复的事件没有被丢弃");
+
+            // 乱序到达的旧版本丢弃，新版本正常分发
+            nodeA.publishTableChanged("T1");
+            check(receivedB.size() == 2, "新版本的事件没有分发");
+            transportA.send(first);
+            check(receivedB.size() == 2, "旧版本的事件没有被丢弃");
+
+            nodeB.publishDatabaseChanged("DB1");
+            check(receivedA.size() == 3 && receivedA.get(2).isDatabaseChanged(), "节点A没有收到数据库变更事件");
+        } finally {
+            nodeA.destroy();
+            nodeB.destroy();
+        }
+
+        // 停止后发送不抛异常
+        MulticastEventTransport multicast = new MulticastEventTransport("230.0.0.230", 45230, 1, "secret");
+        multicast.stop();
+        MetaDataChangeEvent event = new MetaDataChangeEvent(MetaDataChangeEvent.CHANGE_TYPE_TABLE, "T1");
+        multicast.send(event);
+
+        // 组播数据报签名校验：密钥相同才能解码，内容被修改或者没有签名的数据报丢弃
+        byte[] data = multicast.encode(event);
+        MetaDataChangeEvent decoded = multicast.decode(data, 0, data.length);
+        check(decoded != null && "T1".equals(decoded.getCode()), "签名正确的事件没有解码");
+        MulticastEventTransport otherKey = new MulticastEventTransport("230.0.0.230", 45230, 1, "other");
+        check(otherKey.decode(data, 0, data.length) == null, "密钥不同的事件没有丢弃");
+        data[data.length - 3] ^= 1;
+        check(multicast.decode(data, 0, data.length) == null, "被修改的事件没有丢弃");
+        byte[] unsigned = JSON.toJSONString(event).getBytes(StandardCharsets.UTF_8);
+        check(multicast.decode(unsigned, 0, unsigned.length) == null, "没有签名的事件没有丢弃");
+        try {
+            new MulticastEventTransport("230.0.0.230", 45230, 1, "");
+            check(false, "没有配置密钥时应该拒绝创建组播传输");
+        } catch (IllegalArgumentException e) {
+            // 预期的异常
+        }
+
+        System.out.println("元数据事件总线测试通过");
+    }
+}
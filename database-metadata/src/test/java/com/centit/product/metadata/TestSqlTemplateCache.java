@@ -0,0 +1,127 @@
+package com.centit.product.metadata;
+
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaTable;
+import com.centit.product.metadata.service.impl.MetaObjectServiceImpl;
+import com.centit.support.database.utils.FieldType;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 检查 MetaObjectServiceImpl.buildTableQuery 的语句缓存：缓存的键包含对应表字段的过滤参数名和排序参数，
+ * 不对应表字段的参数不影响缓存，直接写排序语句（ORDER_BY）或者排序不能识别时不缓存
+ */
+public class TestSqlTemplateCache {
+
+    private static final MetaObjectServiceImpl SERVICE = new MetaObjectServiceImpl();
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static MetaTable createTable(int columnCount) {
+        MetaTable table = new MetaTable();
+        table.setTableId("T_CACHE");
+        table.setTableName("T_CACHE");
+        table.setDatabaseCode("CACHE");
+        List<MetaColumn> columns = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            MetaColumn column = new MetaColumn();
+            column.setTableId("T_CACHE");
+            column.setColumnName("CACHE_COLUMN_" + i);
+            column.setFieldType(i % 3 == 0 ? FieldType.INTEGER : FieldType.STRING);
+            column.setPrimaryKey(i == 0);
+            columns.add(column);
+        }
+        table.setMdColumns(columns);
+        return table;
+    }
+
+    private static Map<String, Object> createParams(Object... nameValues) {
+        Map<String, Object> params = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            params.put((String) nameValues[i], nameValues[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * buildTableQuery 是私有方法，返回的 TableQuery 也是私有类，通过反射调用
+     */
+    private static Object buildTableQuery(MetaTable table, Map<String, Object> params) throws Exception {
+        Method method = MetaObjectServiceImpl.class.getDeclaredMethod("buildTableQuery",
+            MetaTable.class, String.class, Map.class, String[].class);
+        method.setAccessible(true);
+        return method.invoke(SERVICE, table, null, params, null);
+    }
+
+    private static String fetchQuerySql(Object query) throws Exception {
+        Method method = query.getClass().getDeclaredMethod("fetchQuerySql");
+        method.setAccessible(true);
+        return (String) method.invoke(query);
+    }
+
+    private static String fetchFilter(Object query) throws Exception {
+        Field field = query.getClass().getDeclaredField("filter");
+        field.setAccessible(true);
+        return (String) field.get(query);
+    }
+
+    public static void main(String[] args) throws Exception {
+        MetaTable table = createTable(10);
+
+        // 相同的过滤参数名和排序参数使用缓存的语句，和参数值无关
+        Object query = buildTableQuery(table, createParams("cacheColumn1", "a", "cacheColumn3", 3,
+            "sort", "cacheColumn2", "order", "desc"));
+        check(buildTableQuery(table, createParams("cacheColumn1", "b", "cacheColumn3", 4,
+            "sort", "cacheColumn2", "order", "desc")) == query, "参数值不同时没有使用缓存的语句");
+        check(fetchFilter(query).contains("CACHE_COLUMN_1") && fetchFilter(query).contains("CACHE_COLUMN_3"),
+            "过滤条件不对：" + fetchFilter(query));
+        check(fetchQuerySql(query).contains("CACHE_COLUMN_2") && fetchQuerySql(query).endsWith("desc"),
+            "排序不对：" + fetchQuerySql(query));
+
+        // 不对应表字段的参数不影响语句
+        check(buildTableQuery(table, createParams("cacheColumn1", "a", "cacheColumn3", 3,
+            "sort", "cacheColumn2", "order", "desc", "pageNo", 2, "countPolicy", "SKIP")) == query,
+            "不对应表字段的参数没有使用缓存的语句");
+
+        // 过滤参数名不同时语句不同
+        Object otherFilter = buildTableQuery(table, createParams("cacheColumn1", "a", "cacheColumn7", "b",
+            "sort", "cacheColumn2", "order", "desc"));
+        check(otherFilter != query && fetchFilter(otherFilter).contains("CACHE_COLUMN_7")
+            && !fetchFilter(otherFilter).contains("CACHE_COLUMN_3"), "过滤参数不同时使用了相同的语句");
+
+        // 排序字段、排序方向不同时语句不同
+        Object otherSort = buildTableQuery(table, createParams("cacheColumn1", "a", "cacheColumn3", 3,
+            "sort", "cacheColumn4", "order", "desc"));
+        check(otherSort != query && fetchQuerySql(otherSort).contains("CACHE_COLUMN_4"),
+            "排序字段不同时使用了相同的语句：" + fetchQuerySql(otherSort));
+        Object otherOrder = buildTableQuery(table, createParams("cacheColumn1", "a", "cacheColumn3", 3,
+            "sort", "cacheColumn2", "order", "asc"));
+        check(otherOrder != query && !fetchQuerySql(otherOrder).endsWith("desc"),
+            "排序方向不同时使用了相同的语句：" + fetchQuerySql(otherOrder));
+
+        // 直接写排序语句时不缓存
+        Map<String, Object> orderByParams = createParams("cacheColumn1", "a", "ORDER_BY", "CACHE_COLUMN_5 desc");
+        Object orderBy = buildTableQuery(table, orderByParams);
+        check(buildTableQuery(table, orderByParams) != orderBy, "ORDER_BY 排序的语句被缓存");
+        check(fetchQuerySql(orderBy).contains("CACHE_COLUMN_5"), "ORDER_BY 排序不对：" + fetchQuerySql(orderBy));
+
+        // 不能识别的排序字段、排序方向不缓存
+        Map<String, Object> unknownSort = createParams("cacheColumn1", "a", "sort", "noSuchColumn");
+        check(buildTableQuery(table, unknownSort) != buildTableQuery(table, unknownSort),
+            "不能识别的排序字段被缓存");
+        Map<String, Object> unknownOrder = createParams("cacheColumn1", "a", "sort", "cacheColumn2", "order", "up");
+        check(buildTableQuery(table, unknownOrder) != buildTableQuery(table, unknownOrder),
+            "不能识别的排序方向被缓存");
+
+        System.out.println("查询语句缓存测试通过");
+    }
+}
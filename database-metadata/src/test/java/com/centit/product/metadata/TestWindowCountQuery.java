@@ -0,0 +1,147 @@
+package com.centit.product.metadata;
+
+import com.centit.product.metadata.po.MetaColumn;
+import com.centit.product.metadata.po.MetaTable;
+import com.centit.support.database.jsonmaptable.GeneralJsonObjectDao;
+import com.centit.support.database.metadata.TableField;
+import com.centit.support.database.utils.DBType;
+import com.centit.support.database.utils.FieldType;
+import com.centit.support.database.utils.QueryUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对比分页查询时 两条语句（当前页 + count）和 一条语句（count(*) over()）的耗时，
+ * 用来决定哪些表配置到 metadata.object.count.windowTables 中。
+ * 语句和 MetaObjectServiceImpl.pageQueryObjects 生成的一致：字段列表由 GeneralJsonObjectDao 按表的字段生成
+ * （不含大字段），count(*) over() 加在字段列表后面，再由 QueryUtils 加上分页。
+ * 参数：jdbcUrl user password tableName [orderBy] [where条件]，数据库驱动需要在 classpath 中
+ */
+public class TestWindowCountQuery {
+
+    private static final int PAGE_SIZE = 20;
+    private static final int ROUNDS = 200;
+
+    private static long queryTwoStatements(Connection conn, DBType dbType, String selectSql,
+                                           String countSql, int rowStart) throws SQLException {
+        long sink = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(
+            QueryUtils.buildLimitQuerySQL(selectSql, rowStart, PAGE_SIZE, false, dbType));
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                sink++;
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(countSql);
+             ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                sink += rs.getLong(1);
+            }
+        }
+        return sink;
+    }
+
+    private static long queryWindowCount(Connection conn, DBType dbType, String windowSql,
+                                         int rowStart) throws SQLException {
+        long sink = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(
+            QueryUtils.buildLimitQuerySQL(windowSql, rowStart, PAGE_SIZE, false, dbType));
+             ResultSet rs = stmt.executeQuery()) {
+            boolean first = true;
+            while (rs.next()) {
+                sink++;
+                if (first) {
+                    sink += rs.getLong("META_TOTAL_ROWS");
+                    first = false;
+                }
+            }
+        }
+        return sink;
+    }
+
+    /**
+     * 按数据库中的字段构造表元数据，大字段和元数据中一样设置为懒加载，分页查询时不查询
+     */
+    private static MetaTable createTable(Connection conn, String tableName) throws SQLException {
+        MetaTable table = new MetaTable();
+        table.setTableId(tableName);
+        table.setTableName(tableName);
+        List<MetaColumn> columns = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement("select * from " + tableName + " where 1 = 0");
+             ResultSet rs = stmt.executeQuery()) {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+                int sqlType = rsmd.getColumnType(i);
+                boolean lob = sqlType == Types.CLOB || sqlType == Types.NCLOB || sqlType == Types.BLOB
+                    || sqlType == Types.LONGVARCHAR || sqlType == Types.LONGVARBINARY;
+                MetaColumn column = new MetaColumn();
+                column.setTableId(tableName);
+                column.setColumnName(rsmd.getColumnName(i));
+                column.setFieldType(lob ? FieldType.TEXT : FieldType.STRING);
+                column.setLazyFetch(lob);
+                columns.add(column);
+            }
+        }
+        table.setMdColumns(columns);
+        return table;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 4) {
+            System.out.println("参数：jdbcUrl user password tableName [orderBy] [where条件]");
+            return;
+        }
+        String tableName = args[3];
+        String orderBy = args.length > 4 ? " order by " + args[4] : "";
+        String where = args.length > 5 ? " where " + args[5] : "";
+        DBType dbType = DBType.mapDBType(args[0]);
+
+        try (Connection conn = DriverManager.getConnection(args[0], args[1], args[2])) {
+            Pair<String, TableField[]> q = GeneralJsonObjectDao.buildFieldSqlWithFields(
+                createTable(conn, tableName), null, true);
+            String selectSql = "select " + q.getLeft() + " from " + tableName + where + orderBy;
+            String countSql = "select count(1) as totalRows from " + tableName + where;
+            String windowSql = "select " + q.getLeft() + ", count(*) over() as META_TOTAL_ROWS from "
+                + tableName + where + orderBy;
+
+            long totalRows;
+            try (PreparedStatement stmt = conn.prepareStatement(countSql);
+                 ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                totalRows = rs.getLong(1);
+            }
+            int maxStart = (int) Math.max(0, Math.min(totalRows - PAGE_SIZE, 100 * PAGE_SIZE));
+            // 预热
+            for (int i = 0; i < 10; i++) {
+                queryTwoStatements(conn, dbType, selectSql, countSql, 0);
+                queryWindowCount(conn, dbType, windowSql, 0);
+            }
+
+            long sink = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                sink += queryTwoStatements(conn, dbType, selectSql, countSql, maxStart == 0 ? 0 : i * PAGE_SIZE % maxStart);
+            }
+            long twoStatementTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                sink += queryWindowCount(conn, dbType, windowSql, maxStart == 0 ? 0 : i * PAGE_SIZE % maxStart);
+            }
+            long windowTime = System.nanoTime() - startTime;
+
+            System.out.println("数据库：" + dbType + "，表：" + tableName + "，总行数：" + totalRows + "，校验值：" + sink);
+            System.out.println("两条语句：" + twoStatementTime / ROUNDS / 1000 + " us/页");
+            System.out.println("count(*) over()：" + windowTime / ROUNDS / 1000 + " us/页");
+        }
+    }
+}